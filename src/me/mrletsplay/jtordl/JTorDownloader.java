@@ -1,5 +1,6 @@
 package me.mrletsplay.jtordl;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
@@ -11,19 +12,24 @@ import java.util.concurrent.Callable;
 
 import me.mrletsplay.jtordl.circuit.CircuitState;
 import me.mrletsplay.jtordl.circuit.TorCircuit;
+import me.mrletsplay.jtordl.io.ContentEncoding;
 import me.mrletsplay.jtordl.io.InputProviderFunction;
 import me.mrletsplay.jtordl.io.RetryingInputStream;
 import me.mrletsplay.mrcore.misc.FriendlyException;
 
 public class JTorDownloader {
 
+	private static ResourceInfoCache resourceInfoCache = new ResourceInfoCache();
+
 	public static InputStream createStream(TorCircuit circuit, URL url) throws FriendlyException {
 		try {
 			circuit.awaitState(CircuitState.RUNNING);
-			HttpRequest r = circuit.newRequestBuilder(url.toURI()).build();
-			HttpResponse<InputStream> res = circuit.getHttpClient().send(r, HttpResponse.BodyHandlers.ofInputStream());
+			HttpRequest.Builder b = circuit.newRequestBuilder(url.toURI());
+			if(circuit.isAcceptCompression()) b.header("Accept-Encoding", ContentEncoding.getAcceptEncodingHeader());
+			HttpResponse<InputStream> res = circuit.getHttpClient().send(b.build(), HttpResponse.BodyHandlers.ofInputStream());
 			if(res.statusCode() / 100 != 2) throw new FriendlyException("Got status code " + res.statusCode());
-			return res.body();
+			if(!circuit.isAcceptCompression()) return res.body();
+			return ContentEncoding.fromHeader(res.headers().firstValue("content-encoding").orElse(null)).decode(res.body());
 		} catch (IOException | URISyntaxException | InterruptedException e) {
 			throw new FriendlyException("Failed to create or open connection", e);
 		}
@@ -59,20 +65,31 @@ public class JTorDownloader {
 		}
 	}
 	
-	public static long getContentLength(TorCircuit circuit, URL url) throws FriendlyException {
+	/**
+	 * Returns information about a resource, such as its length and whether it supports range requests.<br>
+	 * Results are cached per URL by the {@link #getResourceInfoCache() resource info cache}, so repeated calls for the same URL don't cause additional requests
+	 * @param circuit The circuit to probe the resource with, if it's not cached
+	 * @param url The URL of the resource
+	 * @return The information about the resource
+	 * @throws FriendlyException If the resource could not be probed
+	 */
+	public static ResourceInfo getResourceInfo(TorCircuit circuit, URL url) throws FriendlyException {
+		return resourceInfoCache.get(circuit, url);
+	}
+
+	public static ResourceInfo getResourceInfo(TorCircuit circuit, String url) throws FriendlyException {
 		try {
-			circuit.awaitState(CircuitState.RUNNING);
-			HttpRequest r = circuit.newRequestBuilder(url.toURI())
-					.method("HEAD", HttpRequest.BodyPublishers.noBody())
-					.build();
-			HttpResponse<Void> res = circuit.getHttpClient().send(r, HttpResponse.BodyHandlers.discarding());
-			return Long.parseLong(res.headers()
-					.firstValue("content-length")
-					.orElseThrow(() -> new FriendlyException("Unknown content length (Status code: " + res.statusCode() + ", Headers: " + res.headers() + ")")));
-		}catch(IOException | URISyntaxException | InterruptedException e) {
-			throw new FriendlyException("Failed to create or open connection", e);
+			return getResourceInfo(circuit, new URL(url));
+		} catch (MalformedURLException e) {
+			throw new FriendlyException(e);
 		}
 	}
+
+	public static long getContentLength(TorCircuit circuit, URL url) throws FriendlyException {
+		ResourceInfo info = getResourceInfo(circuit, url);
+		if(!info.hasContentLength()) throw new FriendlyException("Unknown content length (" + info + ")");
+		return info.getContentLength();
+	}
 	
 	public static long getContentLength(TorCircuit circuit, String url) throws FriendlyException {
 		try {
@@ -83,6 +100,7 @@ public class JTorDownloader {
 	}
 	
 	public static RetryingInputStream createStableInputStream(TorCircuit circuit, URL url) throws FriendlyException {
+		if(circuit.isAcceptCompression()) return createEncodedStableInputStream(circuit, url);
 		InputStream initialInput = createStream(circuit, url);
 		InputProviderFunction newInputFct = newInput(circuit, url, 0, -1);
 		return new RetryingInputStream(initialInput, newInputFct);
@@ -110,7 +128,74 @@ public class JTorDownloader {
 		}
 	}
 	
+	private static RetryingInputStream createEncodedStableInputStream(TorCircuit circuit, URL url) throws FriendlyException {
+		try {
+			circuit.awaitState(CircuitState.RUNNING);
+			HttpRequest r = circuit.newRequestBuilder(url.toURI())
+					.header("Accept-Encoding", ContentEncoding.getAcceptEncodingHeader())
+					.build();
+			HttpResponse<InputStream> res = circuit.getHttpClient().send(r, HttpResponse.BodyHandlers.ofInputStream());
+			if(res.statusCode() / 100 != 2) throw new FriendlyException("Got status code " + res.statusCode());
+
+			// Retries need to continue the same encoded representation, so we ask for exactly that encoding and version
+			ContentEncoding encoding = ContentEncoding.fromHeader(res.headers().firstValue("content-encoding").orElse(null));
+			String eTag = res.headers().firstValue("etag").filter(t -> !t.startsWith("W/")).orElse(null);
+			RetryingInputStream in = new RetryingInputStream(res.body(), newInput(circuit, url, 0, -1, encoding, eTag));
+			in.setContentEncoding(encoding);
+			return in;
+		}catch(IOException | URISyntaxException | InterruptedException e) {
+			throw new FriendlyException("Failed to create or open connection", e);
+		}
+	}
+
+	private static InputStream createRetryStream(TorCircuit circuit, URL url, long rangeStart, long rangeEnd, ContentEncoding encoding, String eTag) throws FriendlyException {
+		try {
+			circuit.awaitState(CircuitState.RUNNING);
+			HttpRequest.Builder b = circuit.newRequestBuilder(url.toURI())
+					.header("Range", "bytes=" + rangeStart + "-" + (rangeEnd == -1 ? "" : rangeEnd));
+			if(encoding != null) b.header("Accept-Encoding", encoding.getName());
+			if(eTag != null) b.header("If-Range", eTag);
+			HttpResponse<InputStream> res = circuit.getHttpClient().send(b.build(), HttpResponse.BodyHandlers.ofInputStream());
+			InputStream body = res.body();
+			try {
+				if(res.statusCode() / 100 != 2) throw new FriendlyException("Got status code " + res.statusCode());
+				if(encoding != null && ContentEncoding.fromHeader(res.headers().firstValue("content-encoding").orElse(null)) != encoding) throw new UnresumableTransferException("Server changed the content encoding");
+
+				if(res.statusCode() != 206 && rangeStart > 0) {
+					// The server sent the whole resource, skip to where we left off if it's still the same one
+					if(rangeEnd != -1) throw new UnresumableTransferException("Server doesn't support range requests");
+					if(eTag != null && !eTag.equals(res.headers().firstValue("etag").orElse(null))) throw new UnresumableTransferException("Resource has changed");
+
+					// Without a strong ETag, the encoded data isn't guaranteed to be byte-for-byte the same as before (e.g. if the server compresses on the fly)
+					if(eTag == null && encoding != null && encoding != ContentEncoding.IDENTITY) throw new UnresumableTransferException("Can't resume encoded transfer without a strong ETag");
+					skipFully(body, rangeStart);
+				}
+				return body;
+			}catch(IOException | FriendlyException e) {
+				body.close();
+				throw e;
+			}
+		}catch(IOException | URISyntaxException | InterruptedException e) {
+			throw new FriendlyException("Failed to create or open connection", e);
+		}
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while(n > 0) {
+			long skipped = in.skip(n);
+			if(skipped <= 0) {
+				if(in.read() == -1) throw new EOFException("Resource is shorter than the requested offset");
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
 	private static InputProviderFunction newInput(TorCircuit circuit, URL url, long rangeStart, long rangeEnd) {
+		return newInput(circuit, url, rangeStart, rangeEnd, null, null);
+	}
+
+	private static InputProviderFunction newInput(TorCircuit circuit, URL url, long rangeStart, long rangeEnd, ContentEncoding encoding, String eTag) {
 		return (offset, forceNewSource) -> {
 			try {
 				if(forceNewSource) {
@@ -118,12 +203,16 @@ public class JTorDownloader {
 					circuit.awaitState(CircuitState.RUNNING);
 				}
 				
-				return tryMultiple(() -> createStream(circuit, url, rangeStart + offset, rangeEnd), 5);
+				return tryMultiple(() -> createRetryStream(circuit, url, rangeStart + offset, rangeEnd, encoding, eTag), 5);
+			} catch (UnresumableTransferException e) {
+				throw e;
 			} catch (Exception e) {
 				circuit.restart();
 				circuit.awaitState(CircuitState.RUNNING);
 				try {
-					return tryMultiple(() -> createStream(circuit, url, rangeStart + offset, rangeEnd), 5);
+					return tryMultiple(() -> createRetryStream(circuit, url, rangeStart + offset, rangeEnd, encoding, eTag), 5);
+				} catch (UnresumableTransferException e1) {
+					throw e1;
 				} catch (Exception e1) {
 					throw new FriendlyException("Failed to reestablish connection", e1);
 				}
@@ -131,11 +220,30 @@ public class JTorDownloader {
 		};
 	}
 	
+	public static void setResourceInfoCache(ResourceInfoCache resourceInfoCache) {
+		JTorDownloader.resourceInfoCache = resourceInfoCache;
+	}
+
+	public static ResourceInfoCache getResourceInfoCache() {
+		return resourceInfoCache;
+	}
+	
+	/**
+	 * Calls a function until it succeeds, up to the given amount of times.<br>
+	 * An {@link UnresumableTransferException} is thrown immediately, because retrying it wouldn't change the result
+	 * @param <T> The return type of the function
+	 * @param call The function to call
+	 * @param maxTries The maximum amount of calls
+	 * @return The result of the first successful call
+	 * @throws Exception The exception thrown by the last call
+	 */
 	public static <T> T tryMultiple(Callable<T> call, int maxTries) throws Exception {
 		int n = 0;
 		while(n++ < maxTries) {
 			try {
 				return call.call();
+			}catch(UnresumableTransferException e) {
+				throw e;
 			}catch(Exception e) {
 				if(n == maxTries) throw e;
 			}
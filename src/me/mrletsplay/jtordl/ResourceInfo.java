@@ -0,0 +1,84 @@
+package me.mrletsplay.jtordl;
+
+import java.net.URL;
+
+/**
+ * Metadata about a remote resource, as returned by {@link JTorDownloader#getResourceInfo(me.mrletsplay.jtordl.circuit.TorCircuit, URL)}
+ */
+public class ResourceInfo {
+
+	private final URL url;
+	private final long contentLength;
+	private final boolean rangeSupported;
+	private final String eTag, lastModified;
+	private final long probeTime;
+
+	public ResourceInfo(URL url, long contentLength, boolean rangeSupported, String eTag, String lastModified) {
+		this.url = url;
+		this.contentLength = contentLength;
+		this.rangeSupported = rangeSupported;
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+		this.probeTime = System.currentTimeMillis();
+	}
+
+	public URL getURL() {
+		return url;
+	}
+
+	/**
+	 * @return The length of the resource in bytes, or <code>-1</code> if the server didn't provide it
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	public boolean hasContentLength() {
+		return contentLength != -1;
+	}
+
+	/**
+	 * Returns whether the server is known to support range requests for this resource, either because it sent <code>Accept-Ranges: bytes</code> or because it answered a range request with partial content
+	 * @return Whether range requests are supported
+	 */
+	public boolean isRangeSupported() {
+		return rangeSupported;
+	}
+
+	/**
+	 * @return The <code>ETag</code> of the resource, or <code>null</code> if the server didn't provide one
+	 */
+	public String getETag() {
+		return eTag;
+	}
+
+	/**
+	 * @return The <code>Last-Modified</code> date of the resource, or <code>null</code> if the server didn't provide one
+	 */
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Returns a validator which may be sent in an <code>If-Range</code> header to make sure ranged requests refer to the same version of the resource.<br>
+	 * Weak ETags are not allowed in <code>If-Range</code>, so the <code>Last-Modified</code> date is used instead in that case
+	 * @return A validator, or <code>null</code> if there is no usable validator
+	 */
+	public String getRangeValidator() {
+		if(eTag != null && !eTag.startsWith("W/")) return eTag;
+		return lastModified;
+	}
+
+	/**
+	 * @return The time when this information was retrieved from the server
+	 */
+	public long getProbeTime() {
+		return probeTime;
+	}
+
+	@Override
+	public String toString() {
+		return "ResourceInfo [url=" + url + ", contentLength=" + contentLength + ", rangeSupported=" + rangeSupported + ", eTag=" + eTag + ", lastModified=" + lastModified + "]";
+	}
+
+}
@@ -0,0 +1,160 @@
+package me.mrletsplay.jtordl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.mrletsplay.jtordl.circuit.CircuitState;
+import me.mrletsplay.jtordl.circuit.TorCircuit;
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+/**
+ * Probes and caches {@link ResourceInfo} per URL.<br>
+ * Resources are probed using a <code>HEAD</code> request. If that fails or doesn't include a content length and an <code>Accept-Ranges</code> header, a <code>GET</code> request for the first byte of the resource is used instead, because many servers support range requests without advertising them.<br>
+ * Concurrent requests for the same URL are merged into a single probe.
+ */
+public class ResourceInfoCache {
+
+	public static final long DEFAULT_TTL = 5 * 60 * 1000; // 5 min
+
+	private long ttl;
+	private Map<String, CompletableFuture<ResourceInfo>> entries;
+
+	/**
+	 * Creates a cache
+	 * @param ttl The time (in milliseconds) for which probed information stays valid. Set to <code>0</code> to only merge concurrent probes without caching the results
+	 */
+	public ResourceInfoCache(long ttl) {
+		this.ttl = ttl;
+		this.entries = new ConcurrentHashMap<>();
+	}
+
+	public ResourceInfoCache() {
+		this(DEFAULT_TTL);
+	}
+
+	public void setTTL(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public long getTTL() {
+		return ttl;
+	}
+
+	/**
+	 * Returns the cached information for a URL, probing it using the given circuit if there is no valid entry
+	 * @param circuit The circuit to probe with
+	 * @param url The URL of the resource
+	 * @return The information about the resource
+	 * @throws FriendlyException If the resource could not be probed
+	 */
+	public ResourceInfo get(TorCircuit circuit, URL url) throws FriendlyException {
+		String key = url.toString();
+		while(true) {
+			CompletableFuture<ResourceInfo> f = entries.get(key);
+			if(f != null && f.isDone() && !f.isCompletedExceptionally() && isExpired(f.join())) {
+				entries.remove(key, f);
+				continue;
+			}
+
+			if(f == null) {
+				prune();
+				CompletableFuture<ResourceInfo> newF = new CompletableFuture<>();
+				f = entries.putIfAbsent(key, newF);
+				if(f == null) {
+					try {
+						newF.complete(probe(circuit, url));
+					}catch(Exception e) {
+						entries.remove(key, newF);
+						newF.completeExceptionally(e);
+					}
+					f = newF;
+				}
+			}
+
+			try {
+				return f.join();
+			}catch(CompletionException e) {
+				if(e.getCause() instanceof FriendlyException) throw (FriendlyException) e.getCause();
+				throw new FriendlyException("Failed to probe resource", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Removes the cached information for a URL, e.g. because the resource is known to have changed
+	 * @param url The URL to remove
+	 */
+	public void invalidate(URL url) {
+		entries.remove(url.toString());
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Removes all expired entries from the cache.<br>
+	 * This is done automatically whenever a new entry is added, so entries for URLs which are never requested again don't stay in memory
+	 */
+	public void prune() {
+		entries.values().removeIf(f -> f.isDone() && !f.isCompletedExceptionally() && isExpired(f.join()));
+	}
+
+	private boolean isExpired(ResourceInfo info) {
+		return System.currentTimeMillis() - info.getProbeTime() >= ttl;
+	}
+
+	private static ResourceInfo probe(TorCircuit circuit, URL url) throws FriendlyException {
+		try {
+			circuit.awaitState(CircuitState.RUNNING);
+			HttpRequest r = circuit.newRequestBuilder(url.toURI())
+					.method("HEAD", HttpRequest.BodyPublishers.noBody())
+					.build();
+			HttpResponse<Void> res = circuit.getHttpClient().send(r, HttpResponse.BodyHandlers.discarding());
+			HttpHeaders h = res.headers();
+			if(res.statusCode() / 100 == 2 && h.firstValue("content-length").isPresent() && h.firstValue("accept-ranges").isPresent()) {
+				return new ResourceInfo(url,
+						Long.parseLong(h.firstValue("content-length").get()),
+						h.firstValue("accept-ranges").map(v -> v.equalsIgnoreCase("bytes")).orElse(false),
+						h.firstValue("etag").orElse(null),
+						h.firstValue("last-modified").orElse(null));
+			}
+
+			return probeRange(circuit, url);
+		}catch(IOException | URISyntaxException | InterruptedException | NumberFormatException e) {
+			throw new FriendlyException("Failed to create or open connection", e);
+		}
+	}
+
+	private static ResourceInfo probeRange(TorCircuit circuit, URL url) throws IOException, URISyntaxException, InterruptedException {
+		HttpRequest r = circuit.newRequestBuilder(url.toURI())
+				.header("Range", "bytes=0-0")
+				.build();
+		HttpResponse<InputStream> res = circuit.getHttpClient().send(r, HttpResponse.BodyHandlers.ofInputStream());
+		res.body().close(); // We only need the headers. This also avoids downloading the whole resource if the range was ignored
+		if(res.statusCode() / 100 != 2) throw new FriendlyException("Got status code " + res.statusCode());
+
+		HttpHeaders h = res.headers();
+		long length = -1;
+		boolean rangeSupported = res.statusCode() == 206;
+		if(rangeSupported) {
+			String contentRange = h.firstValue("content-range").orElse("");
+			int idx = contentRange.lastIndexOf('/');
+			if(idx != -1 && !contentRange.endsWith("*")) length = Long.parseLong(contentRange.substring(idx + 1).trim());
+		}else {
+			length = h.firstValue("content-length").map(Long::parseLong).orElse(-1L);
+		}
+
+		return new ResourceInfo(url, length, rangeSupported, h.firstValue("etag").orElse(null), h.firstValue("last-modified").orElse(null));
+	}
+
+}
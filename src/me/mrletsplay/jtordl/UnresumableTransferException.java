@@ -0,0 +1,17 @@
+package me.mrletsplay.jtordl;
+
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+/**
+ * Thrown when an interrupted transfer can't be continued because the server's response can't be used to resume it, e.g. because the resource has changed or the server doesn't support range requests.<br>
+ * The server would answer the same way on every attempt, so these errors are not retried.
+ */
+public class UnresumableTransferException extends FriendlyException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UnresumableTransferException(String message) {
+		super(message);
+	}
+
+}
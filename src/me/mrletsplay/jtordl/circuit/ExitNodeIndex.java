@@ -0,0 +1,228 @@
+package me.mrletsplay.jtordl.circuit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+/**
+ * Keeps track of the throughput and latency observed through individual exit relays.<br>
+ * Older measurements lose influence over time (they decay with a configurable half-life), so exits which got faster or slower are re-evaluated.<br>
+ * <br>
+ * An index may be assigned to circuits using {@link TorCircuit#setExitNodeIndex(ExitNodeIndex)}, which will then prefer fast exits and avoid slow ones when they are started or rotated.
+ */
+public class ExitNodeIndex {
+
+	public static final long
+		DEFAULT_HALF_LIFE = 24 * 60 * 60 * 1000, // 24 h
+		DEFAULT_SLOW_THRESHOLD_SPEED = 50 * 1024, // 50 KiB/s
+		SAVE_INTERVAL = 30 * 1000; // 30 s
+
+	public static final double
+		DEFAULT_MIN_WEIGHT = 2,
+		PRUNE_WEIGHT = 0.05;
+
+	private File file;
+	private Map<String, Entry> entries;
+	private long halfLife = DEFAULT_HALF_LIFE;
+	private long slowThresholdSpeed = DEFAULT_SLOW_THRESHOLD_SPEED;
+	private double minWeight = DEFAULT_MIN_WEIGHT;
+	private int preferredExitCount;
+	private long lastSave;
+
+	/**
+	 * Creates an index which is persisted to the given file. If the file exists, it is loaded immediately
+	 * @param file The file to store the index in, or <code>null</code> to only keep it in memory
+	 */
+	public ExitNodeIndex(File file) {
+		this.file = file;
+		this.entries = new HashMap<>();
+		if(file != null && file.exists()) load();
+	}
+
+	public ExitNodeIndex() {
+		this(null);
+	}
+
+	/**
+	 * Sets the time after which a measurement only has half of its original influence.<br>
+	 * The default value for this is {@link #DEFAULT_HALF_LIFE}
+	 * @param halfLife The half-life in milliseconds
+	 */
+	public synchronized void setHalfLife(long halfLife) {
+		this.halfLife = halfLife;
+	}
+
+	/**
+	 * Sets the speed (in bytes/s) below which an exit is considered slow and will be excluded.<br>
+	 * An exit is only excluded once it has enough measurements, see {@link #setMinWeight(double)}.<br>
+	 * The default value for this is {@link #DEFAULT_SLOW_THRESHOLD_SPEED}. Set to <code>0</code> to never exclude any exits
+	 * @param slowThresholdSpeed The threshold speed
+	 */
+	public synchronized void setSlowThresholdSpeed(long slowThresholdSpeed) {
+		this.slowThresholdSpeed = slowThresholdSpeed;
+	}
+
+	/**
+	 * Sets the (decayed) amount of measurements required before an exit is preferred or excluded.<br>
+	 * The default value for this is {@link #DEFAULT_MIN_WEIGHT}
+	 * @param minWeight The minimum weight
+	 */
+	public synchronized void setMinWeight(double minWeight) {
+		this.minWeight = minWeight;
+	}
+
+	/**
+	 * Sets how many of the fastest known exits circuits should be pinned to.<br>
+	 * The default value for this is <code>0</code>, which disables pinning and only excludes slow exits
+	 * @param preferredExitCount The amount of exits to prefer
+	 */
+	public synchronized void setPreferredExitCount(int preferredExitCount) {
+		this.preferredExitCount = preferredExitCount;
+	}
+
+	/**
+	 * @return The file this index is stored in, or <code>null</code> if it's only kept in memory
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Records a transfer made through an exit
+	 * @param fingerprint The fingerprint of the exit relay
+	 * @param bytesPerSecond The measured throughput in bytes/s, or <code>-1</code> if only the latency was measured
+	 * @param latencyMillis The measured latency in milliseconds, or <code>-1</code> if only the throughput was measured
+	 */
+	public synchronized void record(String fingerprint, double bytesPerSecond, double latencyMillis) {
+		long now = System.currentTimeMillis();
+		Entry e = entries.computeIfAbsent(fingerprint, k -> new Entry());
+		e.decay(now, halfLife);
+		if(bytesPerSecond >= 0) {
+			e.bytesPerSecond = (e.bytesPerSecond * e.speedWeight + bytesPerSecond) / (e.speedWeight + 1);
+			e.speedWeight++;
+		}
+		if(latencyMillis >= 0) {
+			e.latencyMillis = (e.latencyMillis * e.latencyWeight + latencyMillis) / (e.latencyWeight + 1);
+			e.latencyWeight++;
+		}
+
+		if(file != null && now - lastSave > SAVE_INTERVAL) {
+			try {
+				save();
+			}catch(FriendlyException ex) {
+				// Don't fail the transfer, we'll try again on the next record
+			}
+		}
+	}
+
+	/**
+	 * @param fingerprint The fingerprint of the exit relay
+	 * @return The decayed average throughput in bytes/s, or <code>-1</code> if the exit is unknown
+	 */
+	public synchronized double getBytesPerSecond(String fingerprint) {
+		Entry e = entries.get(fingerprint);
+		return e == null || e.speedWeight == 0 ? -1 : e.bytesPerSecond;
+	}
+
+	/**
+	 * @param fingerprint The fingerprint of the exit relay
+	 * @return The decayed average latency in milliseconds, or <code>-1</code> if the exit is unknown
+	 */
+	public synchronized double getLatencyMillis(String fingerprint) {
+		Entry e = entries.get(fingerprint);
+		return e == null || e.latencyWeight == 0 ? -1 : e.latencyMillis;
+	}
+
+	/**
+	 * @return The fastest exits with enough measurements which are not slow, ordered by descending throughput and limited to {@link #setPreferredExitCount(int)}
+	 */
+	public synchronized List<String> getPreferredExits() {
+		if(preferredExitCount <= 0) return new ArrayList<>();
+		decayAll();
+		return entries.entrySet().stream()
+				.filter(en -> en.getValue().speedWeight >= minWeight && en.getValue().bytesPerSecond >= slowThresholdSpeed)
+				.sorted(Comparator.comparingDouble(en -> -en.getValue().bytesPerSecond))
+				.limit(preferredExitCount)
+				.map(Map.Entry::getKey)
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * @return The exits with enough measurements whose throughput is below the {@link #setSlowThresholdSpeed(long) slow threshold}
+	 */
+	public synchronized List<String> getExcludedExits() {
+		decayAll();
+		return entries.entrySet().stream()
+				.filter(en -> en.getValue().speedWeight >= minWeight && en.getValue().bytesPerSecond < slowThresholdSpeed)
+				.map(Map.Entry::getKey)
+				.collect(Collectors.toList());
+	}
+
+	private void decayAll() {
+		long now = System.currentTimeMillis();
+		entries.values().forEach(e -> e.decay(now, halfLife));
+		entries.values().removeIf(e -> e.speedWeight < PRUNE_WEIGHT && e.latencyWeight < PRUNE_WEIGHT);
+	}
+
+	/**
+	 * Writes this index to its file.<br>
+	 * Besides being saved periodically while transfers are recorded, the index is saved whenever a circuit using it is stopped (including on shutdown)
+	 * @throws FriendlyException If the file can't be written
+	 */
+	public synchronized void save() throws FriendlyException {
+		if(file == null) throw new FriendlyException("Index has no file");
+		decayAll();
+		List<String> lines = new ArrayList<>();
+		entries.forEach((fp, e) -> lines.add(fp + " " + e.bytesPerSecond + " " + e.speedWeight + " " + e.latencyMillis + " " + e.latencyWeight + " " + e.lastUpdate));
+		try {
+			if(file.getParentFile() != null) file.getParentFile().mkdirs();
+			Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+			lastSave = System.currentTimeMillis();
+		}catch(IOException e) {
+			throw new FriendlyException("Failed to save exit node index", e);
+		}
+	}
+
+	private void load() throws FriendlyException {
+		try {
+			for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				String[] parts = line.split(" ");
+				if(parts.length != 6) continue;
+				Entry e = new Entry();
+				e.bytesPerSecond = Double.parseDouble(parts[1]);
+				e.speedWeight = Double.parseDouble(parts[2]);
+				e.latencyMillis = Double.parseDouble(parts[3]);
+				e.latencyWeight = Double.parseDouble(parts[4]);
+				e.lastUpdate = Long.parseLong(parts[5]);
+				entries.put(parts[0], e);
+			}
+		}catch(IOException | NumberFormatException e) {
+			throw new FriendlyException("Failed to load exit node index", e);
+		}
+	}
+
+	private static class Entry {
+
+		private double bytesPerSecond, speedWeight, latencyMillis, latencyWeight;
+		private long lastUpdate = System.currentTimeMillis();
+
+		private void decay(long now, long halfLife) {
+			if(now <= lastUpdate) return;
+			double factor = Math.pow(0.5, (double) (now - lastUpdate) / halfLife);
+			speedWeight *= factor;
+			latencyWeight *= factor;
+			lastUpdate = now;
+		}
+
+	}
+
+}
@@ -20,6 +20,7 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -35,16 +36,21 @@ import me.mrletsplay.mrcore.misc.FriendlyException;
 public class TorCircuit {
 
 	private static String torPath = "tor";
+	private static URI connectionTestURI = URI.create("https://google.com");
 
 	private File circuitFolder;
 	private String host;
 	private int port;
 	private Proxy httpProxy;
 	private HttpClient httpClient;
-	private boolean isDefault, verbose, printTorOutput, preferIPv6;
+	private boolean isDefault, verbose, printTorOutput, preferIPv6, acceptCompression;
 	private CircuitState state;
 	private Process instanceProcess;
 	private Map<String, String> defaultHeaders;
+	private int controlPort = -1;
+	private File controlCookieFile;
+	private TorController controller;
+	private ExitNodeIndex exitNodeIndex;
 
 	private TorCircuit(File circuitFolder, String host, int port, boolean isDefault, Consumer<HttpClient.Builder> builderFunction) {
 		if(!isDefault && !ensureOpen(host, port)) throw new FriendlyException("Address is not open: " + host + ":" + port);
@@ -175,6 +181,19 @@ public class TorCircuit {
 		return preferIPv6;
 	}
 
+	/**
+	 * Sets whether requests made using {@link me.mrletsplay.jtordl.JTorDownloader} should ask the server for a compressed response (see {@link me.mrletsplay.jtordl.io.ContentEncoding}).<br>
+	 * Compressed responses are decoded while reading. Requests for explicit byte ranges are never compressed, because a part of a compressed response can't be decoded on its own
+	 * @param acceptCompression Whether to accept compressed responses
+	 */
+	public void setAcceptCompression(boolean acceptCompression) {
+		this.acceptCompression = acceptCompression;
+	}
+
+	public boolean isAcceptCompression() {
+		return acceptCompression;
+	}
+
 	@Deprecated
 	public void setDefaultRequestProperties(Map<String, String> defaultRequestProperties) {
 		setDefaultHeaders(defaultRequestProperties);
@@ -190,6 +209,35 @@ public class TorCircuit {
 		return getDefaultHeaders();
 	}
 
+	/**
+	 * Sets the control port to use for default circuits. Non-default circuits always open their own control port when started
+	 * @param controlPort The control port of the attached Tor instance
+	 * @param cookieFile The <code>control_auth_cookie</code> file to authenticate with, or <code>null</code> if the control port doesn't require authentication
+	 */
+	public void setControlPort(int controlPort, File cookieFile) {
+		if(!isDefault) throw new UnsupportedOperationException("Circuit is not default circuit");
+		this.controlPort = controlPort;
+		this.controlCookieFile = cookieFile;
+	}
+
+	public int getControlPort() {
+		return controlPort;
+	}
+
+	/**
+	 * Sets the index used to pick exits for this circuit. When the circuit is started, restarted or {@link #rotate() rotated}, it will prefer the index's fast exits and exclude its slow ones.<br>
+	 * Transfers reported using {@link #recordTransfer(String, long, long, long)} are added to the index
+	 * @param exitNodeIndex The index to use, or <code>null</code> to not track exits
+	 * @see ExitNodeIndex
+	 */
+	public void setExitNodeIndex(ExitNodeIndex exitNodeIndex) {
+		this.exitNodeIndex = exitNodeIndex;
+	}
+
+	public ExitNodeIndex getExitNodeIndex() {
+		return exitNodeIndex;
+	}
+
 	public void setDefaultHeaders(Map<String, String> defaultRequestProperties) {
 		this.defaultHeaders = defaultRequestProperties;
 	}
@@ -222,7 +270,9 @@ public class TorCircuit {
 		try {
 			int nTries = 5;
 			while(nTries-- > 0) {
-				ProcessBuilder pb = new ProcessBuilder(
+				controlPort = getFreePort(host);
+				controlCookieFile = new File(circuitFolder, "control_auth_cookie");
+				List<String> command = new ArrayList<>(Arrays.asList(
 						torPath,
 						"-f",
 						torRCFile.getAbsolutePath(),
@@ -231,8 +281,21 @@ public class TorCircuit {
 						"--SocksPort",
 						"0",
 						"--HTTPTunnelPort",
-						String.valueOf(port) + (preferIPv6 ? " PreferIPv6" : "")
-					);
+						String.valueOf(port) + (preferIPv6 ? " PreferIPv6" : ""),
+						"--ControlPort",
+						String.valueOf(controlPort),
+						"--CookieAuthentication",
+						"1"
+					));
+
+				if(exitNodeIndex != null) {
+					List<String> preferred = exitNodeIndex.getPreferredExits();
+					List<String> excluded = exitNodeIndex.getExcludedExits();
+					if(!preferred.isEmpty()) command.addAll(Arrays.asList("--ExitNodes", toNodeList(preferred)));
+					if(!excluded.isEmpty()) command.addAll(Arrays.asList("--ExcludeExitNodes", toNodeList(excluded)));
+				}
+
+				ProcessBuilder pb = new ProcessBuilder(command);
 
 				if(printTorOutput) {
 					pb.redirectOutput(Redirect.INHERIT);
@@ -276,11 +339,18 @@ public class TorCircuit {
 	public void stop() {
 		if(isDefault) throw new UnsupportedOperationException("Circuit is default circuit");
 		if(!isRunning()) return;
-		stop0(true);
-		IOUtils.deleteFile(circuitFolder);
+		state = CircuitState.STOPPING;
+		try {
+			stop0(true);
+			IOUtils.deleteFile(circuitFolder);
+		}finally {
+			state = CircuitState.STOPPED;
+		}
 	}
 
 	private void stop0(boolean deleteFiles) {
+		closeController();
+		saveExitNodeIndex();
 		if(!instanceProcess.isAlive()) return;
 		instanceProcess.destroy();
 		try {
@@ -302,6 +372,104 @@ public class TorCircuit {
 		new Thread(this::start0, "Restart-Tor-Circuit_" + host + "-" + port).start();
 	}
 
+	/**
+	 * Returns a connection to this circuit's control port, opening it if necessary
+	 * @return The controller
+	 * @throws FriendlyException If the control port is not available or the connection fails
+	 */
+	public synchronized TorController getController() throws FriendlyException {
+		if(controlPort == -1) throw new FriendlyException("Control port is not available");
+		if(controller == null || !controller.isConnected()) controller = new TorController(host, controlPort, controlCookieFile);
+		return controller;
+	}
+
+	private void saveExitNodeIndex() {
+		if(exitNodeIndex == null || exitNodeIndex.getFile() == null) return;
+		try {
+			exitNodeIndex.save();
+		}catch(FriendlyException e) {
+			debugLog("Failed to save exit node index: " + e.getMessage());
+		}
+	}
+
+	private synchronized void closeController() {
+		if(controller == null) return;
+		controller.close();
+		controller = null;
+	}
+
+	/**
+	 * Returns the fingerprint of the exit relay this circuit currently uses
+	 * @return The fingerprint, or <code>null</code> if Tor doesn't have a suitable circuit
+	 * @throws FriendlyException If the control port is not available
+	 * @see TorController#getCurrentExitFingerprint()
+	 */
+	public String getExitFingerprint() throws FriendlyException {
+		try {
+			return getController().getCurrentExitFingerprint();
+		}catch(FriendlyException e) {
+			closeController();
+			throw e;
+		}
+	}
+
+	/**
+	 * Switches to a new exit without restarting Tor. If an {@link ExitNodeIndex} is set, its current preferred and excluded exits are applied first
+	 * @throws FriendlyException If the control port is not available
+	 */
+	public void rotate() throws FriendlyException {
+		try {
+			TorController c = getController();
+			if(exitNodeIndex != null) {
+				c.setConf("ExitNodes", toNodeEntries(exitNodeIndex.getPreferredExits()));
+				c.setConf("ExcludeExitNodes", toNodeEntries(exitNodeIndex.getExcludedExits()));
+			}
+			c.signal("NEWNYM");
+		}catch(FriendlyException e) {
+			closeController();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the exit to attribute a transfer to when calling {@link #recordTransfer(String, long, long, long)}.<br>
+	 * Tor only reports streams while they're open, so this should be called while the response is being received. Looking it up after the transfer may return a different exit, e.g. if the circuit was rotated in the meantime
+	 * @return The fingerprint of the exit, or <code>null</code> if no index is set or the exit can't be determined
+	 */
+	public String getTransferExit() {
+		if(exitNodeIndex == null) return null;
+		try {
+			return getExitFingerprint();
+		}catch(FriendlyException e) {
+			debugLog("Failed to determine exit: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Reports a transfer made through this circuit to its {@link ExitNodeIndex}.<br>
+	 * Transfers which failed because of the connection (but not because of an error response from the server) should be reported as well, using the amount of bytes and time until the failure.<br>
+	 * Does nothing if no index is set or the exit is unknown
+	 * @param exit The exit the transfer was made through, as returned by {@link #getTransferExit()}
+	 * @param bytes The amount of bytes transferred
+	 * @param transferMillis The time (in milliseconds) it took to transfer the bytes, or <code>-1</code> to only record the latency
+	 * @param latencyMillis The time (in milliseconds) until the response headers were received, or <code>-1</code> if unknown
+	 */
+	public void recordTransfer(String exit, long bytes, long transferMillis, long latencyMillis) {
+		if(exitNodeIndex == null || exit == null) return;
+		exitNodeIndex.record(exit, transferMillis >= 0 ? bytes * 1000d / Math.max(transferMillis, 1) : -1, latencyMillis);
+	}
+
+	private static List<String> toNodeEntries(List<String> fingerprints) {
+		List<String> entries = new ArrayList<>();
+		fingerprints.forEach(fp -> entries.add("$" + fp));
+		return entries;
+	}
+
+	private static String toNodeList(List<String> fingerprints) {
+		return String.join(",", toNodeEntries(fingerprints));
+	}
+
 	public void awaitState(CircuitState state) {
 		if(state.ordinal() < CircuitState.RUNNING.ordinal()) throw new FriendlyException("Can't await pre-RUNNING state");
 		while(this.state.ordinal() < state.ordinal()) {
@@ -315,7 +483,7 @@ public class TorCircuit {
 
 	private boolean testConnection() {
 		try {
-			HttpRequest r = newRequestBuilder(new URI("https://google.com"))
+			HttpRequest r = newRequestBuilder(connectionTestURI)
 					.timeout(Duration.of(5, ChronoUnit.SECONDS))
 					.build();
 			httpClient.send(r, HttpResponse.BodyHandlers.discarding());
@@ -328,7 +496,7 @@ public class TorCircuit {
 	@Deprecated
 	public boolean connectionTest() {
 		try {
-			HttpURLConnection con = createConnection("https://google.com");
+			HttpURLConnection con = createConnection(connectionTestURI.toURL());
 			con.setConnectTimeout(5000);
 			con.connect();
 			con.disconnect();
@@ -420,6 +588,19 @@ public class TorCircuit {
 		TorCircuit.torPath = torPath;
 	}
 
+	/**
+	 * Sets the URI which is requested to check whether a newly started circuit is usable.<br>
+	 * The default value for this is <code>https://google.com</code>
+	 * @param connectionTestURI The URI to use
+	 */
+	public static void setConnectionTestURI(URI connectionTestURI) {
+		TorCircuit.connectionTestURI = connectionTestURI;
+	}
+
+	public static URI getConnectionTestURI() {
+		return connectionTestURI;
+	}
+
 	private static boolean ensureOpen(String host, int port) {
 		try(ServerSocket ss = ServerSocketFactory.getDefault().createServerSocket()){
 			ss.setReuseAddress(true);
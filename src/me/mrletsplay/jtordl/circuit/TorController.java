@@ -0,0 +1,172 @@
+package me.mrletsplay.jtordl.circuit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+/**
+ * A minimal client for Tor's control protocol
+ */
+public class TorController implements AutoCloseable {
+
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	private Socket socket;
+	private BufferedReader in;
+	private OutputStream out;
+
+	/**
+	 * Connects to a control port and authenticates
+	 * @param host The host the control port is listening on
+	 * @param port The control port
+	 * @param cookieFile The <code>control_auth_cookie</code> file to authenticate with, or <code>null</code> if the control port doesn't require authentication
+	 * @throws FriendlyException If the connection or authentication fails
+	 */
+	public TorController(String host, int port, File cookieFile) throws FriendlyException {
+		try {
+			socket = new Socket();
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			out = socket.getOutputStream();
+			command(cookieFile == null ? "AUTHENTICATE" : "AUTHENTICATE " + toHex(Files.readAllBytes(cookieFile.toPath())));
+		}catch(IOException e) {
+			close();
+			throw new FriendlyException("Failed to connect to control port", e);
+		}
+	}
+
+	/**
+	 * Sends a command and returns the lines of the reply, excluding status codes.<br>
+	 * Data replies (<code>250+</code>) are returned with their data lines following the reply line
+	 * @param command The command to send
+	 * @return The lines of the reply
+	 * @throws FriendlyException If the connection fails or Tor replies with an error
+	 */
+	public synchronized List<String> command(String command) throws FriendlyException {
+		try {
+			out.write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+
+			List<String> lines = new ArrayList<>();
+			String line;
+			while((line = in.readLine()) != null) {
+				if(line.length() < 4) throw new FriendlyException("Invalid reply from control port: " + line);
+				String status = line.substring(0, 3);
+				char type = line.charAt(3);
+				if(!status.startsWith("2")) throw new FriendlyException("Control command failed: " + line);
+				lines.add(line.substring(4));
+
+				if(type == '+') {
+					while((line = in.readLine()) != null && !line.equals(".")) {
+						lines.add(line.startsWith(".") ? line.substring(1) : line);
+					}
+				}else if(type == ' ') {
+					return lines;
+				}
+			}
+			throw new FriendlyException("Control connection closed");
+		}catch(IOException e) {
+			throw new FriendlyException("Failed to send control command", e);
+		}
+	}
+
+	/**
+	 * Retrieves a value using <code>GETINFO</code>
+	 * @param key The key to retrieve
+	 * @return The lines of the value
+	 * @throws FriendlyException If the command fails
+	 */
+	public List<String> getInfo(String key) throws FriendlyException {
+		List<String> reply = command("GETINFO " + key);
+		List<String> value = new ArrayList<>();
+		for(String line : reply) {
+			if(line.equals("OK")) continue;
+			if(line.startsWith(key + "=")) line = line.substring(key.length() + 1);
+			if(!line.isEmpty()) value.add(line);
+		}
+		return value;
+	}
+
+	/**
+	 * Changes a configuration option using <code>SETCONF</code>. Passing an empty collection resets the option to its default value
+	 * @param key The option to change
+	 * @param values The values to set, will be joined using commas
+	 * @throws FriendlyException If the command fails
+	 */
+	public void setConf(String key, Collection<String> values) throws FriendlyException {
+		command(values.isEmpty() ? "SETCONF " + key : "SETCONF " + key + "=\"" + String.join(",", values) + "\"");
+	}
+
+	/**
+	 * Sends a signal, e.g. <code>NEWNYM</code> to switch to clean circuits
+	 * @param signal The signal to send
+	 * @throws FriendlyException If the command fails
+	 */
+	public void signal(String signal) throws FriendlyException {
+		command("SIGNAL " + signal);
+	}
+
+	/**
+	 * Returns the fingerprint of the exit relay currently used for outgoing connections.<br>
+	 * This is the exit of the circuit carrying the most recent stream or, if there are no streams or the stream's circuit was closed, of the newest built general-purpose circuit
+	 * @return The fingerprint (without the leading <code>$</code>), or <code>null</code> if there is no suitable circuit
+	 * @throws FriendlyException If the command fails
+	 */
+	public String getCurrentExitFingerprint() throws FriendlyException {
+		String circuitID = null;
+		for(String stream : getInfo("stream-status")) {
+			String[] parts = stream.split(" ");
+			if(parts.length >= 3 && parts[1].equals("SUCCEEDED")) circuitID = parts[2];
+		}
+
+		String exit = null;
+		for(String circuit : getInfo("circuit-status")) {
+			String[] parts = circuit.split(" ");
+			if(parts.length < 3 || !parts[1].equals("BUILT")) continue;
+			if(parts[0].equals(circuitID)) return parseExit(parts[2]);
+
+			if(circuit.contains("IS_INTERNAL") || circuit.contains("ONEHOP_TUNNEL")) continue;
+			if(circuit.contains("PURPOSE=") && !circuit.contains("PURPOSE=GENERAL")) continue;
+			exit = parseExit(parts[2]); // Circuits are listed in order of creation
+		}
+		return exit; // The stream's circuit may have been closed in the meantime
+	}
+
+	private static String parseExit(String path) {
+		String[] hops = path.split(",");
+		String exit = hops[hops.length - 1];
+		int end = exit.length();
+		if(exit.indexOf('~') != -1) end = exit.indexOf('~');
+		else if(exit.indexOf('=') != -1) end = exit.indexOf('=');
+		return exit.substring(exit.startsWith("$") ? 1 : 0, end);
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder b = new StringBuilder();
+		for(byte by : bytes) b.append(String.format("%02X", by));
+		return b.toString();
+	}
+
+	public boolean isConnected() {
+		return socket != null && socket.isConnected() && !socket.isClosed();
+	}
+
+	@Override
+	public void close() {
+		try {
+			if(socket != null) socket.close();
+		}catch(IOException ignored) {}
+	}
+
+}
@@ -0,0 +1,258 @@
+package me.mrletsplay.jtordl.download;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+/**
+ * Splits a resource of known length into ranges whose size is chosen from the measured bandwidth and round-trip time of the source requesting them.<br>
+ * <br>
+ * Each range is sized to roughly <code>bandwidth * rtt * rttMultiplier</code> (a multiple of the bandwidth-delay product), so that the cost of a new request is small compared to the transfer itself.
+ * Near the end of the resource, ranges are limited to the requesting source's share of the total bandwidth, so a single slow source doesn't end up holding the tail.<br>
+ * <br>
+ * Sources must report every range they were given using either {@link #complete(ByteRange)} or {@link #fail(ByteRange, long, ThroughputEstimator)}. Once all ranges are handed out, idle sources wait for failed ranges to be given back
+ * or, if {@link #setHedging(boolean) hedging} is enabled, download a range which is still in progress on a slower source as well.
+ */
+public class AdaptiveRangeScheduler {
+
+	public static final long
+		DEFAULT_MIN_CHUNK_SIZE = 64 * 1024, // 64 KiB
+		DEFAULT_MAX_CHUNK_SIZE = 16 * 1024 * 1024, // 16 MiB
+		DEFAULT_INITIAL_CHUNK_SIZE = 256 * 1024; // 256 KiB
+
+	public static final double DEFAULT_RTT_MULTIPLIER = 8;
+
+	private final long contentLength;
+	private long nextOffset;
+	private Deque<ByteRange> requeued;
+	private List<ThroughputEstimator> sources;
+	private Map<ByteRange, List<ThroughputEstimator>> inFlight;
+	private boolean hedging = true;
+	private boolean cancelled;
+
+	private long
+		minChunkSize = DEFAULT_MIN_CHUNK_SIZE,
+		maxChunkSize = DEFAULT_MAX_CHUNK_SIZE,
+		initialChunkSize = DEFAULT_INITIAL_CHUNK_SIZE;
+	private double rttMultiplier = DEFAULT_RTT_MULTIPLIER;
+
+	public AdaptiveRangeScheduler(long contentLength) {
+		if(contentLength < 0) throw new IllegalArgumentException("Content length must be known");
+		this.contentLength = contentLength;
+		this.requeued = new ArrayDeque<>();
+		this.sources = new ArrayList<>();
+		this.inFlight = new IdentityHashMap<>();
+	}
+
+	/**
+	 * Sets the bounds for the size of a single range.<br>
+	 * The default values for this are {@link #DEFAULT_MIN_CHUNK_SIZE} and {@link #DEFAULT_MAX_CHUNK_SIZE}
+	 * @param minChunkSize The minimum size of a range (except for the last one)
+	 * @param maxChunkSize The maximum size of a range
+	 */
+	public synchronized void setChunkSizeBounds(long minChunkSize, long maxChunkSize) {
+		if(minChunkSize <= 0 || maxChunkSize < minChunkSize) throw new IllegalArgumentException("Invalid chunk size bounds");
+		this.minChunkSize = minChunkSize;
+		this.maxChunkSize = maxChunkSize;
+	}
+
+	/**
+	 * Sets the size of ranges handed to sources which don't have any measurements yet.<br>
+	 * The default value for this is {@link #DEFAULT_INITIAL_CHUNK_SIZE}
+	 * @param initialChunkSize The initial range size
+	 */
+	public synchronized void setInitialChunkSize(long initialChunkSize) {
+		if(initialChunkSize <= 0) throw new IllegalArgumentException("Initial chunk size must be positive");
+		this.initialChunkSize = initialChunkSize;
+	}
+
+	/**
+	 * Sets how many bandwidth-delay products a single range should span. Higher values reduce the per-request overhead, lower values improve load balancing.<br>
+	 * The default value for this is {@link #DEFAULT_RTT_MULTIPLIER}
+	 * @param rttMultiplier The multiplier to use
+	 */
+	public synchronized void setRTTMultiplier(double rttMultiplier) {
+		if(rttMultiplier <= 0) throw new IllegalArgumentException("RTT multiplier must be positive");
+		this.rttMultiplier = rttMultiplier;
+	}
+
+	/**
+	 * Sets whether idle sources may download the last ranges again while they are still in progress on a slower source. Whichever source finishes first completes the range.<br>
+	 * Hedging is enabled by default
+	 * @param hedging Whether to enable hedging
+	 */
+	public synchronized void setHedging(boolean hedging) {
+		this.hedging = hedging;
+	}
+
+	/**
+	 * Registers a new source with this scheduler
+	 * @return The estimator to pass to {@link #nextRange(ThroughputEstimator)} and to record transfers with
+	 */
+	public synchronized ThroughputEstimator registerSource() {
+		ThroughputEstimator est = new ThroughputEstimator();
+		sources.add(est);
+		return est;
+	}
+
+	/**
+	 * Unregisters a source, e.g. because it failed permanently. Its estimate will no longer be considered when sizing ranges
+	 * @param source The source to remove
+	 */
+	public synchronized void unregisterSource(ThroughputEstimator source) {
+		sources.remove(source);
+		notifyAll();
+	}
+
+	/**
+	 * Returns the next range to be downloaded by the given source.<br>
+	 * If there are no ranges left to hand out but others are still in progress, this blocks until a range is given back, a range can be hedged or all ranges are completed
+	 * @param source The source requesting the range, as returned by {@link #registerSource()}
+	 * @return The next range, or <code>null</code> if all ranges are completed or the scheduler was {@link #cancel() cancelled}
+	 * @throws FriendlyException If the thread is interrupted while waiting
+	 */
+	public synchronized ByteRange nextRange(ThroughputEstimator source) throws FriendlyException {
+		while(true) {
+			if(cancelled) return null;
+			ByteRange range = takeRange(source);
+			if(range == null && hedging) range = findHedgeRange(source);
+			if(range != null) {
+				inFlight.computeIfAbsent(range, r -> new ArrayList<>()).add(source);
+				return range;
+			}
+
+			if(inFlight.isEmpty()) return null;
+
+			try {
+				wait();
+			}catch(InterruptedException e) {
+				throw new FriendlyException(e);
+			}
+		}
+	}
+
+	private ByteRange takeRange(ThroughputEstimator source) {
+		long size = chooseChunkSize(source);
+
+		ByteRange r = requeued.pollFirst();
+		if(r != null) {
+			if(r.getLength() <= size) return r;
+			requeued.addFirst(new ByteRange(r.getStart() + size, r.getEnd()));
+			return new ByteRange(r.getStart(), r.getStart() + size - 1);
+		}
+
+		if(nextOffset >= contentLength) return null;
+		long end = Math.min(nextOffset + size, contentLength) - 1;
+		ByteRange range = new ByteRange(nextOffset, end);
+		nextOffset = end + 1;
+		return range;
+	}
+
+	private ByteRange findHedgeRange(ThroughputEstimator source) {
+		if(!source.hasEstimate()) return null;
+
+		// Only duplicate ranges which have a single, slower source
+		ByteRange slowest = null;
+		double slowestSpeed = source.getBytesPerSecond();
+		for(Map.Entry<ByteRange, List<ThroughputEstimator>> en : inFlight.entrySet()) {
+			if(en.getValue().size() != 1) continue;
+			ThroughputEstimator holder = en.getValue().get(0);
+			double speed = holder.hasEstimate() ? holder.getBytesPerSecond() : 0;
+			if(speed < slowestSpeed) {
+				slowest = en.getKey();
+				slowestSpeed = speed;
+			}
+		}
+		return slowest;
+	}
+
+	/**
+	 * Marks a range as downloaded. If the range was hedged, the other sources should stop downloading it once {@link #isInProgress(ByteRange)} returns <code>false</code>
+	 * @param range The range which was downloaded
+	 */
+	public synchronized void complete(ByteRange range) {
+		inFlight.remove(range);
+		notifyAll();
+	}
+
+	/**
+	 * Reports that a source failed to download a range. Unless another source is still downloading the same range, the part which wasn't downloaded will be handed out again before any new ranges
+	 * @param range The range which failed
+	 * @param bytesDone The amount of bytes at the start of the range which were downloaded successfully
+	 * @param source The source which failed
+	 */
+	public synchronized void fail(ByteRange range, long bytesDone, ThroughputEstimator source) {
+		List<ThroughputEstimator> holders = inFlight.get(range);
+		if(holders == null) return; // Already completed by another source
+		holders.remove(source);
+		if(holders.isEmpty()) {
+			inFlight.remove(range);
+			if(bytesDone < range.getLength()) requeued.addLast(new ByteRange(range.getStart() + bytesDone, range.getEnd()));
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Stops handing out ranges, e.g. because the resource changed and none of the downloaded data can be used.<br>
+	 * All ranges in progress are dropped and waiting sources are woken up
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		inFlight.clear();
+		notifyAll();
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @param range A range returned by {@link #nextRange(ThroughputEstimator)}
+	 * @return Whether the range still needs to be downloaded, <code>false</code> if another source already completed it or the scheduler was cancelled
+	 */
+	public synchronized boolean isInProgress(ByteRange range) {
+		return inFlight.containsKey(range);
+	}
+
+	/**
+	 * @return The amount of bytes which have not been handed out yet, including requeued ranges
+	 */
+	public synchronized long getRemainingBytes() {
+		long remaining = contentLength - nextOffset;
+		for(ByteRange r : requeued) remaining += r.getLength();
+		return remaining;
+	}
+
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	private long chooseChunkSize(ThroughputEstimator source) {
+		if(!source.hasEstimate()) return clamp(initialChunkSize);
+
+		double bandwidth = source.getBytesPerSecond();
+		long size = (long) (bandwidth * source.getRTTMillis() / 1000 * rttMultiplier);
+
+		// Near the end, only take as much as this source can finish in the time the others need for the rest
+		double totalBandwidth = 0;
+		for(ThroughputEstimator s : sources) {
+			if(s.getBytesPerSecond() > 0) totalBandwidth += s.getBytesPerSecond();
+		}
+		if(totalBandwidth > 0) {
+			long share = (long) (getRemainingBytes() * (bandwidth / totalBandwidth));
+			size = Math.min(size, share);
+		}
+
+		return clamp(size);
+	}
+
+	private long clamp(long size) {
+		return Math.max(minChunkSize, Math.min(maxChunkSize, size));
+	}
+
+}
@@ -0,0 +1,36 @@
+package me.mrletsplay.jtordl.download;
+
+/**
+ * An inclusive range of bytes, as used in the HTTP <code>Range</code> header
+ */
+public class ByteRange {
+
+	private final long start, end;
+
+	public ByteRange(long start, long end) {
+		if(start < 0 || end < start) throw new IllegalArgumentException("Invalid range: " + start + "-" + end);
+		this.start = start;
+		this.end = end;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return The last byte of this range (inclusive)
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	@Override
+	public String toString() {
+		return start + "-" + end;
+	}
+
+}
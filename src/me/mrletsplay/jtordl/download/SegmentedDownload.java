@@ -0,0 +1,219 @@
+package me.mrletsplay.jtordl.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import me.mrletsplay.jtordl.JTorDownloader;
+import me.mrletsplay.jtordl.ResourceInfo;
+import me.mrletsplay.jtordl.circuit.CircuitState;
+import me.mrletsplay.jtordl.circuit.TorCircuit;
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+/**
+ * Downloads a single resource over multiple circuits in parallel using ranged requests.<br>
+ * The size of each request is chosen by an {@link AdaptiveRangeScheduler} based on the measured performance of the circuit making it.
+ */
+public class SegmentedDownload {
+
+	public static final int DEFAULT_MAX_FAILURES = 5;
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)", Pattern.CASE_INSENSITIVE);
+
+	private List<TorCircuit> circuits;
+	private URL url;
+	private String rangeValidator;
+	private AdaptiveRangeScheduler scheduler;
+	private int maxFailures = DEFAULT_MAX_FAILURES;
+	private volatile Exception lastError;
+	private volatile FriendlyException abortError;
+
+	/**
+	 * Creates a segmented download
+	 * @param circuits The circuits to download with, one worker will be started per circuit
+	 * @param url The URL to download. The server must support range requests
+	 * @param contentLength The length of the resource, e.g. as returned by {@link JTorDownloader#getContentLength(TorCircuit, URL)}
+	 */
+	public SegmentedDownload(List<TorCircuit> circuits, URL url, long contentLength) {
+		if(circuits.isEmpty()) throw new IllegalArgumentException("Need at least one circuit");
+		this.circuits = new ArrayList<>(circuits);
+		this.url = url;
+		this.scheduler = new AdaptiveRangeScheduler(contentLength);
+	}
+
+	/**
+	 * Creates a segmented download from previously probed information. If the resource has a validator, it is sent with every request so that parts of a changed resource are never mixed.
+	 * If the resource changes during the download, the download is aborted
+	 * @param circuits The circuits to download with, one worker will be started per circuit
+	 * @param info The information about the resource, e.g. as returned by {@link JTorDownloader#getResourceInfo(TorCircuit, URL)}
+	 * @throws IllegalArgumentException If the server doesn't support range requests for the resource
+	 */
+	public SegmentedDownload(List<TorCircuit> circuits, ResourceInfo info) {
+		this(circuits, info.getURL(), info.getContentLength());
+		if(!info.isRangeSupported()) throw new IllegalArgumentException("Server doesn't support range requests for " + info.getURL());
+		this.rangeValidator = info.getRangeValidator();
+	}
+
+	/**
+	 * @return The scheduler used by this download. May be used to tune the chunk sizes before calling {@link #downloadTo(File)}
+	 */
+	public AdaptiveRangeScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Sets how many consecutive requests may fail on a single circuit before that circuit is given up on.<br>
+	 * The default value for this is {@link #DEFAULT_MAX_FAILURES}
+	 * @param maxFailures The maximum amount of consecutive failures
+	 */
+	public void setMaxFailures(int maxFailures) {
+		this.maxFailures = maxFailures;
+	}
+
+	/**
+	 * Downloads the resource to the given file, blocking until the download is finished
+	 * @param file The file to write to. It will be created or overwritten
+	 * @throws FriendlyException If the download could not be completed on any of the circuits, the server responded with an error or the resource changed during the download
+	 */
+	public void downloadTo(File file) throws FriendlyException {
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(scheduler.getContentLength());
+			FileChannel channel = raf.getChannel();
+
+			List<Thread> workers = new ArrayList<>();
+			for(int i = 0; i < circuits.size(); i++) {
+				TorCircuit circuit = circuits.get(i);
+				Thread t = new Thread(() -> runWorker(circuit, channel), "Segmented-Download_" + i);
+				workers.add(t);
+				t.start();
+			}
+
+			for(Thread t : workers) t.join();
+
+			if(abortError != null) throw abortError;
+			if(scheduler.getRemainingBytes() > 0) throw new FriendlyException("Failed to download all ranges", lastError);
+		}catch(IOException | InterruptedException e) {
+			throw new FriendlyException("Failed to write download", e);
+		}
+	}
+
+	private void runWorker(TorCircuit circuit, FileChannel channel) {
+		ThroughputEstimator estimator = scheduler.registerSource();
+		int failures = 0;
+		ByteRange range;
+		while((range = scheduler.nextRange(estimator)) != null) {
+			long done = 0, requestStart = -1, transferStart = -1, rtt = -1;
+			String exit = null;
+			try {
+				circuit.awaitState(CircuitState.RUNNING);
+				requestStart = System.currentTimeMillis();
+				HttpResponse<InputStream> res = sendRangeRequest(circuit, range);
+				rtt = System.currentTimeMillis() - requestStart;
+
+				try(InputStream in = res.body()) {
+					if(res.statusCode() == 200 && rangeValidator != null) throw new FriendlyException("Resource has changed since it was probed, aborting download"); // The server ignored If-Range
+					if(res.statusCode() == 200) throw new FriendlyException("Server doesn't support range requests");
+					if(res.statusCode() != 206) throw new FriendlyException("Server didn't respond with partial content (Status code: " + res.statusCode() + ")");
+					checkContentRange(res, range);
+
+					// Look up the exit while the stream is open, the circuit may have been rotated by the time the transfer is done
+					exit = circuit.getTransferExit();
+					transferStart = System.currentTimeMillis();
+					byte[] buf = new byte[BUFFER_SIZE];
+					int len;
+					while(done < range.getLength() && scheduler.isInProgress(range) && (len = in.read(buf, 0, (int) Math.min(buf.length, range.getLength() - done))) != -1) {
+						writeFully(channel, ByteBuffer.wrap(buf, 0, len), range.getStart() + done);
+						done += len;
+					}
+				}
+
+				if(!scheduler.isInProgress(range)) {
+					// Another circuit finished this range first
+					circuit.recordTransfer(exit, done, System.currentTimeMillis() - transferStart, rtt);
+					continue;
+				}
+				if(done < range.getLength()) throw new IOException("Connection closed after " + done + " of " + range.getLength() + " bytes");
+				long transferTime = System.currentTimeMillis() - transferStart;
+				estimator.record(done, transferTime, rtt);
+				circuit.recordTransfer(exit, done, transferTime, rtt);
+				scheduler.complete(range);
+				failures = 0;
+			}catch(IOException e) {
+				// Transport error, the rest of the range is retried on a fresh circuit
+				lastError = e;
+				scheduler.fail(range, done, estimator);
+
+				// Also report failed transfers, so exits which drop or stall connections are rated accordingly
+				if(transferStart != -1) {
+					circuit.recordTransfer(exit, done, System.currentTimeMillis() - transferStart, rtt);
+				}else if(requestStart != -1) {
+					// There's no stream to look up, new streams use the newest circuit
+					circuit.recordTransfer(circuit.getTransferExit(), 0, System.currentTimeMillis() - requestStart, -1);
+				}
+
+				if(++failures >= maxFailures) {
+					scheduler.unregisterSource(estimator);
+					return;
+				}
+
+				if(!circuit.isDefault()) {
+					circuit.restart();
+					estimator.reset();
+				}
+			}catch(Exception e) {
+				// Error responses (and anything else which isn't a transport error) would fail the same way on every circuit
+				abort(e instanceof FriendlyException ? (FriendlyException) e : new FriendlyException("Failed to download range " + range, e));
+				return;
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws FriendlyException {
+		try {
+			while(buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+		}catch(IOException e) {
+			// Not a transport error, so this must not restart the circuit or be reported to the exit node index
+			throw new FriendlyException("Failed to write download", e);
+		}
+	}
+
+	private void checkContentRange(HttpResponse<?> res, ByteRange range) throws FriendlyException {
+		String contentRange = res.headers().firstValue("content-range").orElse(null);
+		if(contentRange == null) throw new FriendlyException("Server didn't send a Content-Range header");
+
+		Matcher m = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+		if(!m.matches()) throw new FriendlyException("Invalid Content-Range header: " + contentRange);
+		if(!m.group(3).equals("*") && Long.parseLong(m.group(3)) != scheduler.getContentLength()) {
+			throw new FriendlyException("Resource has changed since it was probed (Length is " + m.group(3) + " instead of " + scheduler.getContentLength() + "), aborting download");
+		}
+		if(Long.parseLong(m.group(1)) != range.getStart() || Long.parseLong(m.group(2)) != range.getEnd()) {
+			throw new FriendlyException("Server sent range " + m.group(1) + "-" + m.group(2) + " instead of " + range);
+		}
+	}
+
+	private void abort(FriendlyException error) {
+		if(abortError == null) abortError = error;
+		JTorDownloader.getResourceInfoCache().invalidate(url);
+		scheduler.cancel();
+	}
+
+	private HttpResponse<InputStream> sendRangeRequest(TorCircuit circuit, ByteRange range) throws IOException, InterruptedException, URISyntaxException {
+		HttpRequest.Builder b = circuit.newRequestBuilder(url.toURI())
+				.header("Range", "bytes=" + range);
+		if(rangeValidator != null) b.header("If-Range", rangeValidator);
+		return circuit.getHttpClient().send(b.build(), HttpResponse.BodyHandlers.ofInputStream());
+	}
+
+}
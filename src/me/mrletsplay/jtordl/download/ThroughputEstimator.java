@@ -0,0 +1,62 @@
+package me.mrletsplay.jtordl.download;
+
+/**
+ * Keeps a moving estimate of the bandwidth and round-trip time of a single source (e.g. a Tor circuit)
+ */
+public class ThroughputEstimator {
+
+	public static final double DEFAULT_SMOOTHING = 0.3;
+
+	private double smoothing;
+	private double bytesPerSecond = -1;
+	private double rttMillis = -1;
+
+	public ThroughputEstimator(double smoothing) {
+		if(smoothing <= 0 || smoothing > 1) throw new IllegalArgumentException("Smoothing must be in (0, 1]");
+		this.smoothing = smoothing;
+	}
+
+	public ThroughputEstimator() {
+		this(DEFAULT_SMOOTHING);
+	}
+
+	/**
+	 * Records a finished transfer
+	 * @param bytes The amount of bytes transferred
+	 * @param transferMillis The time (in milliseconds) it took to transfer the bytes, excluding the time to the first byte
+	 * @param rttMillis The time (in milliseconds) between sending the request and receiving the response headers
+	 */
+	public synchronized void record(long bytes, long transferMillis, long rttMillis) {
+		if(rttMillis >= 0) this.rttMillis = this.rttMillis == -1 ? rttMillis : smoothing * rttMillis + (1 - smoothing) * this.rttMillis;
+		if(bytes <= 0) return;
+		double speed = bytes * 1000d / Math.max(transferMillis, 1);
+		this.bytesPerSecond = this.bytesPerSecond == -1 ? speed : smoothing * speed + (1 - smoothing) * this.bytesPerSecond;
+	}
+
+	/**
+	 * Clears all measurements, e.g. after the underlying circuit was restarted
+	 */
+	public synchronized void reset() {
+		bytesPerSecond = -1;
+		rttMillis = -1;
+	}
+
+	/**
+	 * @return The estimated bandwidth in bytes/s, or <code>-1</code> if nothing was measured yet
+	 */
+	public synchronized double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @return The estimated round-trip time in milliseconds, or <code>-1</code> if nothing was measured yet
+	 */
+	public synchronized double getRTTMillis() {
+		return rttMillis;
+	}
+
+	public synchronized boolean hasEstimate() {
+		return bytesPerSecond != -1 && rttMillis != -1;
+	}
+
+}
@@ -0,0 +1,84 @@
+package me.mrletsplay.jtordl.fetch;
+
+import java.net.URL;
+import java.net.http.HttpHeaders;
+
+import me.mrletsplay.jtordl.circuit.TorCircuit;
+
+/**
+ * The result of a single request made by a {@link FetchSession}
+ */
+public class FetchResult {
+
+	private final URL url;
+	private final TorCircuit circuit;
+	private final int statusCode;
+	private final HttpHeaders headers;
+	private final byte[] body;
+	private final Throwable error;
+	private final long durationMillis;
+
+	FetchResult(URL url, TorCircuit circuit, int statusCode, HttpHeaders headers, byte[] body, Throwable error, long durationMillis) {
+		this.url = url;
+		this.circuit = circuit;
+		this.statusCode = statusCode;
+		this.headers = headers;
+		this.body = body;
+		this.error = error;
+		this.durationMillis = durationMillis;
+	}
+
+	public URL getURL() {
+		return url;
+	}
+
+	/**
+	 * @return The circuit the request was made on
+	 */
+	public TorCircuit getCircuit() {
+		return circuit;
+	}
+
+	/**
+	 * @return The status code of the response, or <code>-1</code> if the request failed
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return The headers of the response, or <code>null</code> if the request failed
+	 */
+	public HttpHeaders getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @return The (decoded) body of the response, or <code>null</code> if the request failed
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+
+	/**
+	 * @return The error which caused the request to fail, or <code>null</code> if a response was received
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	/**
+	 * @return The time (in milliseconds) between submitting the request and receiving the full response, including time spent queued and retries
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * @return Whether a response with a <code>2xx</code> status code was received
+	 */
+	public boolean isSuccess() {
+		return error == null && statusCode / 100 == 2;
+	}
+
+}
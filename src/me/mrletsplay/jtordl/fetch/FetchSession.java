@@ -0,0 +1,277 @@
+package me.mrletsplay.jtordl.fetch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import me.mrletsplay.jtordl.circuit.CircuitState;
+import me.mrletsplay.jtordl.circuit.TorCircuit;
+import me.mrletsplay.jtordl.io.ContentEncoding;
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+/**
+ * Fetches many small resources over a set of circuits.<br>
+ * Requests are grouped by host and every host sticks to one circuit, so its connections (and HTTP/2 streams) stay warm and are reused.
+ * Up to {@link #setMaxRequestsPerHost(int)} requests per host run concurrently, the rest are queued and sent as soon as earlier requests finish.<br>
+ * <br>
+ * Requests are sent asynchronously, so no threads are blocked while waiting for responses.
+ * While a circuit is starting or restarting, requests for its hosts stay queued until it is running again. If a circuit is stopped, its hosts are moved to another circuit.
+ */
+public class FetchSession {
+
+	public static final int
+		DEFAULT_MAX_REQUESTS_PER_HOST = 6,
+		DEFAULT_MAX_RETRIES = 1;
+
+	public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(60);
+
+	private List<TorCircuit> circuits;
+	private Map<TorCircuit, Integer> hostCounts;
+	private Map<String, HostQueue> hosts;
+	private Map<TorCircuit, CompletableFuture<Void>> startingCircuits;
+	private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private Duration timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * Creates a fetch session
+	 * @param circuits The circuits to distribute hosts over
+	 */
+	public FetchSession(List<TorCircuit> circuits) {
+		if(circuits.isEmpty()) throw new IllegalArgumentException("Need at least one circuit");
+		this.circuits = new ArrayList<>(circuits);
+		this.hostCounts = new HashMap<>();
+		this.hosts = new ConcurrentHashMap<>();
+		this.startingCircuits = new HashMap<>();
+	}
+
+	/**
+	 * Sets how many requests to the same host may be in flight at the same time.<br>
+	 * The default value for this is {@link #DEFAULT_MAX_REQUESTS_PER_HOST}
+	 * @param maxRequestsPerHost The maximum amount of concurrent requests per host
+	 */
+	public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+		if(maxRequestsPerHost <= 0) throw new IllegalArgumentException("Must allow at least one request per host");
+		this.maxRequestsPerHost = maxRequestsPerHost;
+	}
+
+	/**
+	 * Sets how often a request is retried if it fails without a response (e.g. because of a timeout or a closed connection).<br>
+	 * The default value for this is {@link #DEFAULT_MAX_RETRIES}
+	 * @param maxRetries The maximum amount of retries
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Sets the timeout for a single request.<br>
+	 * The default value for this is {@link #DEFAULT_TIMEOUT}
+	 * @param timeout The timeout
+	 */
+	public void setTimeout(Duration timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Queues a request for the given URL
+	 * @param url The URL to fetch
+	 * @return A future which is completed with the result once the request has finished. It is never completed exceptionally, failed requests are reported through {@link FetchResult#getError()}
+	 */
+	public CompletableFuture<FetchResult> submit(URL url) {
+		String key = url.getProtocol().toLowerCase(Locale.ROOT) + "://" + url.getHost().toLowerCase(Locale.ROOT) + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+		HostQueue host = hosts.computeIfAbsent(key, k -> new HostQueue(assignCircuit()));
+		PendingRequest request = new PendingRequest(url);
+		host.add(request);
+		return request.future;
+	}
+
+	/**
+	 * Fetches all of the given URLs, passing each result to the callback as soon as it's available.<br>
+	 * The callback may be called from multiple threads at the same time
+	 * @param urls The URLs to fetch
+	 * @param callback The callback to pass the results to
+	 * @return A future which is completed once all requests have finished and the callback was called for each of them
+	 */
+	public CompletableFuture<Void> fetchAll(Collection<URL> urls, Consumer<FetchResult> callback) {
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for(URL url : urls) futures.add(submit(url).thenAccept(callback));
+		return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+	}
+
+	private synchronized TorCircuit assignCircuit() {
+		TorCircuit best = null;
+		for(TorCircuit c : circuits) {
+			if(best == null || isBetterCircuit(c, best)) best = c;
+		}
+		hostCounts.merge(best, 1, Integer::sum);
+		return best;
+	}
+
+	private synchronized TorCircuit reassignCircuit(TorCircuit circuit) {
+		hostCounts.merge(circuit, -1, Integer::sum);
+		return assignCircuit();
+	}
+
+	/**
+	 * Returns a future which completes once the given circuit has finished (re)starting.<br>
+	 * All hosts on the same circuit share one future, so only a single thread waits for each circuit
+	 * @param circuit The circuit to wait for
+	 * @return The future
+	 */
+	private CompletableFuture<Void> whenStarted(TorCircuit circuit) {
+		synchronized(startingCircuits) {
+			CompletableFuture<Void> f = startingCircuits.get(circuit);
+			if(f == null || f.isDone()) {
+				CompletableFuture<Void> newF = CompletableFuture.runAsync(() -> circuit.awaitState(CircuitState.RUNNING));
+				startingCircuits.put(circuit, newF);
+				newF.whenComplete((v, e) -> {
+					synchronized(startingCircuits) {
+						startingCircuits.remove(circuit, newF);
+					}
+				});
+				f = newF;
+			}
+			return f;
+		}
+	}
+
+	private boolean isBetterCircuit(TorCircuit circuit, TorCircuit other) {
+		// Prefer circuits which are already running, then the ones which are (re)starting, then the ones with the fewest hosts
+		int rank = getRank(circuit), otherRank = getRank(other);
+		if(rank != otherRank) return rank > otherRank;
+		return hostCounts.getOrDefault(circuit, 0) < hostCounts.getOrDefault(other, 0);
+	}
+
+	private static int getRank(TorCircuit circuit) {
+		if(circuit.getState() == CircuitState.RUNNING) return 2;
+		return circuit.isRunning() ? 1 : 0;
+	}
+
+	private class HostQueue {
+
+		private TorCircuit circuit;
+		private Deque<PendingRequest> pending;
+		private int active;
+		private boolean waiting;
+
+		public HostQueue(TorCircuit circuit) {
+			this.circuit = circuit;
+			this.pending = new ArrayDeque<>();
+		}
+
+		public void add(PendingRequest request) {
+			synchronized(this) {
+				pending.addLast(request);
+			}
+			dispatch();
+		}
+
+		private void dispatch() {
+			List<PendingRequest> toSend = new ArrayList<>();
+			TorCircuit sendCircuit;
+			synchronized(this) {
+				if(waiting) return;
+				if(!circuit.isRunning()) {
+					// The circuit was stopped or crashed and won't come back on its own
+					circuit = reassignCircuit(circuit);
+				}
+
+				if(circuit.isStarting()) {
+					// Keep requests queued while the circuit is (re)starting instead of letting them fail
+					waiting = true;
+					whenStarted(circuit).whenComplete((v, e) -> {
+						synchronized(this) {
+							waiting = false;
+						}
+						dispatch();
+					});
+					return;
+				}
+
+				while(active < maxRequestsPerHost && !pending.isEmpty()) {
+					toSend.add(pending.pollFirst());
+					active++;
+				}
+				sendCircuit = circuit;
+			}
+			toSend.forEach(r -> send(r, sendCircuit));
+		}
+
+		private void send(PendingRequest request, TorCircuit circuit) {
+			CompletableFuture<HttpResponse<byte[]>> response;
+			try {
+				HttpRequest.Builder b = circuit.newRequestBuilder(request.url.toURI())
+						.timeout(timeout);
+				if(circuit.isAcceptCompression()) b.header("Accept-Encoding", ContentEncoding.getAcceptEncodingHeader());
+				response = circuit.getHttpClient().sendAsync(b.build(), HttpResponse.BodyHandlers.ofByteArray());
+			}catch(URISyntaxException | RuntimeException e) {
+				response = CompletableFuture.failedFuture(e);
+			}
+
+			response.whenComplete((res, e) -> {
+				boolean retry;
+				synchronized(this) {
+					active--;
+					retry = e != null && request.tries++ < maxRetries;
+					if(retry) pending.addFirst(request);
+				}
+
+				if(!retry) request.complete(circuit, res, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+				dispatch();
+			});
+		}
+
+	}
+
+	private static class PendingRequest {
+
+		private URL url;
+		private CompletableFuture<FetchResult> future;
+		private long startTime;
+		private int tries;
+
+		public PendingRequest(URL url) {
+			this.url = url;
+			this.future = new CompletableFuture<>();
+			this.startTime = System.currentTimeMillis();
+		}
+
+		public void complete(TorCircuit circuit, HttpResponse<byte[]> res, Throwable error) {
+			long duration = System.currentTimeMillis() - startTime;
+			if(error != null) {
+				future.complete(new FetchResult(url, circuit, -1, null, null, error, duration));
+				return;
+			}
+
+			try {
+				byte[] body = res.body();
+				if(circuit.isAcceptCompression()) {
+					ContentEncoding encoding = ContentEncoding.fromHeader(res.headers().firstValue("content-encoding").orElse(null));
+					if(encoding != ContentEncoding.IDENTITY) body = encoding.decode(new ByteArrayInputStream(body)).readAllBytes();
+				}
+				future.complete(new FetchResult(url, circuit, res.statusCode(), res.headers(), body, null, duration));
+			}catch(IOException | FriendlyException e) {
+				future.complete(new FetchResult(url, circuit, -1, null, null, e, duration));
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,117 @@
+package me.mrletsplay.jtordl.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A pool of reusable, equally sized buffers with a hard limit on the amount of buffers that may be in use at the same time.<br>
+ * A single pool may be shared between any number of streams to put an upper bound on the total memory used by all of them.
+ */
+public class BufferPool {
+
+	public static final int
+		DEFAULT_BUFFER_SIZE = 64 * 1024, // 64 KiB
+		DEFAULT_MAX_BUFFERS = 256; // 16 MiB total
+
+	private static BufferPool defaultPool;
+
+	private final int bufferSize, maxBuffers;
+	private final boolean direct;
+	private Semaphore available;
+	private ConcurrentLinkedQueue<ByteBuffer> freeBuffers;
+
+	/**
+	 * Creates a buffer pool
+	 * @param bufferSize The size of a single buffer in bytes
+	 * @param maxBuffers The maximum amount of buffers handed out at the same time
+	 * @param direct Whether to allocate direct (off-heap) buffers
+	 */
+	public BufferPool(int bufferSize, int maxBuffers, boolean direct) {
+		if(bufferSize <= 0 || maxBuffers <= 0) throw new IllegalArgumentException("Buffer size and count must be positive");
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+		this.direct = direct;
+		this.available = new Semaphore(maxBuffers, true);
+		this.freeBuffers = new ConcurrentLinkedQueue<>();
+	}
+
+	public BufferPool(int bufferSize, int maxBuffers) {
+		this(bufferSize, maxBuffers, false);
+	}
+
+	/**
+	 * Takes a buffer from the pool, blocking until one is available.<br>
+	 * The returned buffer is cleared and must be given back using {@link #release(ByteBuffer)} once it's no longer needed
+	 * @return A buffer of {@link #getBufferSize()} bytes
+	 * @throws InterruptedException If the thread was interrupted while waiting for a buffer
+	 */
+	public ByteBuffer acquire() throws InterruptedException {
+		available.acquire();
+		ByteBuffer buf = freeBuffers.poll();
+		if(buf == null) buf = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Takes a buffer from the pool if one is available without waiting
+	 * @return A cleared buffer, or <code>null</code> if all buffers are in use
+	 * @see #acquire()
+	 */
+	public ByteBuffer tryAcquire() {
+		if(!available.tryAcquire()) return null;
+		ByteBuffer buf = freeBuffers.poll();
+		if(buf == null) buf = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Gives a buffer back to the pool
+	 * @param buffer A buffer previously returned by {@link #acquire()}
+	 */
+	public void release(ByteBuffer buffer) {
+		freeBuffers.offer(buffer);
+		available.release();
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getMaxBuffers() {
+		return maxBuffers;
+	}
+
+	/**
+	 * @return The amount of buffers currently handed out
+	 */
+	public int getBuffersInUse() {
+		return maxBuffers - available.availablePermits();
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Sets the pool used by {@link ReadAheadInputStream}s which are created without an explicit pool.<br>
+	 * This only affects streams created after this method is called
+	 * @param pool The new default pool
+	 */
+	public static synchronized void setDefault(BufferPool pool) {
+		defaultPool = pool;
+	}
+
+	/**
+	 * Returns the pool used by {@link ReadAheadInputStream}s which are created without an explicit pool.<br>
+	 * If no default pool was set, a heap pool of {@link #DEFAULT_MAX_BUFFERS} buffers with {@link #DEFAULT_BUFFER_SIZE} bytes each is created
+	 * @return The default pool
+	 */
+	public static synchronized BufferPool getDefault() {
+		if(defaultPool == null) defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_BUFFERS);
+		return defaultPool;
+	}
+
+}
@@ -0,0 +1,111 @@
+package me.mrletsplay.jtordl.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+/**
+ * The content encodings which can be decoded while streaming.<br>
+ * {@link #BROTLI} is only available if the <code>org.brotli.dec</code> decoder is present at runtime
+ */
+public enum ContentEncoding {
+
+	IDENTITY("identity"),
+	GZIP("gzip"),
+	DEFLATE("deflate"),
+	BROTLI("br"),
+	;
+
+	private static final String BROTLI_DECODER_CLASS = "org.brotli.dec.BrotliInputStream";
+
+	private final String name;
+
+	private ContentEncoding(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return The name of this encoding, as used in the <code>Content-Encoding</code> header
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public boolean isAvailable() {
+		if(this != BROTLI) return true;
+		try {
+			Class.forName(BROTLI_DECODER_CLASS);
+			return true;
+		}catch(ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Wraps a stream of encoded data in a stream which decodes it
+	 * @param in The encoded stream
+	 * @return The decoded stream
+	 * @throws IOException If the stream header is invalid
+	 */
+	public InputStream decode(InputStream in) throws IOException {
+		switch(this) {
+			case IDENTITY:
+				return in;
+			case GZIP:
+				return new GZIPInputStream(in);
+			case DEFLATE:
+			{
+				// "deflate" is supposed to be zlib-wrapped, but some servers send raw deflate data
+				PushbackInputStream pIn = new PushbackInputStream(in, 2);
+				byte[] header = pIn.readNBytes(2);
+				pIn.unread(header);
+				boolean zlib = header.length == 2 && (header[0] & 0x0F) == 8 && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+				return new InflaterInputStream(pIn, new Inflater(!zlib));
+			}
+			case BROTLI:
+				try {
+					return (InputStream) Class.forName(BROTLI_DECODER_CLASS).getConstructor(InputStream.class).newInstance(in);
+				}catch(ReflectiveOperationException e) {
+					throw new FriendlyException("Brotli decoder is not available", e);
+				}
+			default:
+				throw new FriendlyException("Unsupported encoding");
+		}
+	}
+
+	/**
+	 * Parses the value of a <code>Content-Encoding</code> header
+	 * @param header The header value, may be <code>null</code>
+	 * @return The corresponding encoding, {@link #IDENTITY} if the header is <code>null</code> or empty
+	 * @throws FriendlyException If the encoding is not supported (including multiple encodings)
+	 */
+	public static ContentEncoding fromHeader(String header) throws FriendlyException {
+		if(header == null || header.isBlank()) return IDENTITY;
+		String name = header.trim().toLowerCase(Locale.ROOT);
+		if(name.equals("x-gzip")) return GZIP;
+		for(ContentEncoding e : values()) {
+			if(e.name.equals(name) && e.isAvailable()) return e;
+		}
+		throw new FriendlyException("Unsupported content encoding: " + header);
+	}
+
+	/**
+	 * @return The value for an <code>Accept-Encoding</code> header listing all available encodings
+	 */
+	public static String getAcceptEncodingHeader() {
+		List<String> names = new ArrayList<>();
+		for(ContentEncoding e : values()) {
+			if(e != IDENTITY && e.isAvailable()) names.add(e.name);
+		}
+		return String.join(", ", names);
+	}
+
+}
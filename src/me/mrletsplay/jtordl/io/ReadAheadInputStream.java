@@ -0,0 +1,216 @@
+package me.mrletsplay.jtordl.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link InputStream} which reads from another stream on a separate thread, so that network reads overlap with whatever the consumer is doing with the data.<br>
+ * Data is read ahead into buffers taken from a {@link BufferPool}. The amount of buffers a single stream may fill in advance is limited, and the pool limits the total across all streams sharing it.<br>
+ * Every stream reserves one buffer from the pool when it is created, so it can always make progress even if other streams hold all remaining buffers.
+ * If the pool is exhausted when the stream is created, it doesn't read ahead and reads from the source directly instead.<br>
+ * <br>
+ * Errors thrown by the source stream are rethrown to the consumer once all data read before the error has been consumed. When wrapping a {@link RetryingInputStream}, retries happen on the read-ahead thread and are not visible to the consumer.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+	public static final int DEFAULT_MAX_QUEUED_BUFFERS = 4;
+
+	private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+	private static final int SCRATCH_SIZE = 16 * 1024;
+	private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+	private InputStream source;
+	private BufferPool pool;
+	private BlockingQueue<ByteBuffer> queue;
+	private Semaphore queuePermits;
+	private ByteBuffer reserved;
+	private BlockingQueue<ByteBuffer> spare;
+	private Thread producer;
+	private ByteBuffer current;
+	private volatile Throwable error;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a read-ahead stream and immediately starts reading from the source
+	 * @param source The stream to read from
+	 * @param pool The pool to take buffers from
+	 * @param maxQueuedBuffers The maximum amount of buffers this stream may read ahead
+	 */
+	public ReadAheadInputStream(InputStream source, BufferPool pool, int maxQueuedBuffers) {
+		if(maxQueuedBuffers <= 0) throw new IllegalArgumentException("Must allow at least one queued buffer");
+		if(maxQueuedBuffers > pool.getMaxBuffers()) throw new IllegalArgumentException("Can't queue more buffers than the pool provides");
+		this.source = source;
+		this.pool = pool;
+		this.queue = new LinkedBlockingQueue<>();
+		this.queuePermits = new Semaphore(maxQueuedBuffers);
+		this.reserved = pool.tryAcquire();
+		if(reserved == null) return; // Pool is exhausted, read directly from the source
+		this.spare = new LinkedBlockingQueue<>();
+		spare.add(reserved);
+		this.producer = new Thread(this::produce, "Read-Ahead_" + THREAD_COUNTER.incrementAndGet());
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	/**
+	 * Creates a read-ahead stream using the {@link BufferPool#getDefault() default pool} and {@link #DEFAULT_MAX_QUEUED_BUFFERS}
+	 * @param source The stream to read from
+	 */
+	public ReadAheadInputStream(InputStream source) {
+		this(source, BufferPool.getDefault(), DEFAULT_MAX_QUEUED_BUFFERS);
+	}
+
+	private void produce() {
+		byte[] scratch = pool.isDirect() ? new byte[Math.min(SCRATCH_SIZE, pool.getBufferSize())] : null;
+		try {
+			boolean eof = false;
+			while(!eof && !closed) {
+				queuePermits.acquire();
+				ByteBuffer buf = null;
+				try {
+					// Never wait for the shared pool, only for our own reserved buffer
+					buf = spare.poll();
+					if(buf == null) buf = pool.tryAcquire();
+					if(buf == null) buf = spare.take();
+					buf.clear();
+					try {
+						eof = fill(buf, scratch);
+					}catch(Throwable e) {
+						// Hand out what was read before the error, it's rethrown once the consumer reaches it
+						error = e;
+						eof = true;
+					}
+					buf.flip();
+					if(buf.hasRemaining()) {
+						queue.add(buf);
+						buf = null;
+					}
+				}finally {
+					if(buf != null) {
+						releaseBuffer(buf);
+						queuePermits.release();
+					}
+				}
+			}
+		}catch(InterruptedException e) {
+			// Stream was closed
+		}catch(Throwable e) {
+			error = e;
+		}finally {
+			queue.add(EOF);
+			if(closed) drain();
+		}
+	}
+
+	private boolean fill(ByteBuffer buf, byte[] scratch) throws IOException {
+		while(buf.hasRemaining()) {
+			int n;
+			if(scratch == null) {
+				n = source.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+				if(n > 0) buf.position(buf.position() + n);
+			}else {
+				n = source.read(scratch, 0, Math.min(scratch.length, buf.remaining()));
+				if(n > 0) buf.put(scratch, 0, n);
+			}
+
+			if(n == -1) return true;
+			if(buf.position() > 0 && source.available() == 0) break; // Hand out what we have instead of waiting for more
+		}
+		return false;
+	}
+
+	private boolean nextBuffer() throws IOException {
+		while(current == null || (current != EOF && !current.hasRemaining())) {
+			if(current != null) releaseCurrent();
+			try {
+				current = queue.take();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for data", e);
+			}
+		}
+
+		if(current == EOF) {
+			Throwable e = error;
+			if(e instanceof IOException) throw (IOException) e;
+			if(e instanceof RuntimeException) throw (RuntimeException) e;
+			if(e != null) throw new IOException(e);
+			return false;
+		}
+		return true;
+	}
+
+	private void releaseBuffer(ByteBuffer buf) {
+		if(buf != reserved) {
+			pool.release(buf);
+			return;
+		}
+
+		spare.add(buf);
+		if(closed) returnReserved();
+	}
+
+	private void returnReserved() {
+		if(spare.remove(reserved)) pool.release(reserved); // Only succeeds once the reserved buffer is no longer in use
+	}
+
+	private void releaseCurrent() {
+		if(current == null || current == EOF) return;
+		releaseBuffer(current);
+		queuePermits.release();
+		current = null;
+	}
+
+	private void drain() {
+		ByteBuffer buf;
+		while((buf = queue.poll()) != null) {
+			if(buf == EOF) continue;
+			releaseBuffer(buf);
+			queuePermits.release();
+		}
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if(closed) throw new IllegalStateException("Stream is closed");
+		if(producer == null) return source.read(b, off, len);
+		if(len == 0) return 0;
+		if(!nextBuffer()) return -1;
+		int n = Math.min(len, current.remaining());
+		current.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		if(closed) throw new IllegalStateException("Stream is closed");
+		if(producer == null) return source.read();
+		if(!nextBuffer()) return -1;
+		return current.get() & 0xFF;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		if(closed) return 0;
+		if(producer == null) return source.available();
+		return current == null || current == EOF ? 0 : current.remaining();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		if(producer != null) {
+			producer.interrupt();
+			releaseCurrent();
+			drain();
+			returnReserved();
+		}
+		source.close();
+	}
+
+}
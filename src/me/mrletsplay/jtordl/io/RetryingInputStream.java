@@ -2,7 +2,6 @@ package me.mrletsplay.jtordl.io;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 
 public class RetryingInputStream extends InputStream {
 
@@ -12,7 +11,7 @@ public class RetryingInputStream extends InputStream {
 	private InputStream in;
 	private InputProviderFunction providerFunction;
 	private long offset;
-	private boolean closed;
+	private volatile boolean closed;
 
 	private boolean trackTransferSpeed;
 	private long
@@ -27,6 +26,9 @@ public class RetryingInputStream extends InputStream {
 		slowThresholdTime = DEFAULT_SLOW_THRESHOLD_TIME;
 	private long lastFastTime = -1;
 
+	private ContentEncoding contentEncoding = ContentEncoding.IDENTITY;
+	private InputStream decodedIn;
+
 	public RetryingInputStream(InputStream initialInput, InputProviderFunction providerFunction) {
 		this.in = initialInput;
 		this.providerFunction = providerFunction;
@@ -102,10 +104,50 @@ public class RetryingInputStream extends InputStream {
 		return trackTransferSpeed ? (timeOfLastByte == -1 ? -1 : System.currentTimeMillis() - timeOfLastByte) : -1;
 	}
 
+	/**
+	 * Sets the content encoding of the data provided by the input streams. If it is not {@link ContentEncoding#IDENTITY}, the data is decoded while reading.<br>
+	 * Offsets passed to the {@link InputProviderFunction}, as well as the transfer speed, always refer to the encoded data.<br>
+	 * This must be called before reading from the stream
+	 * @param contentEncoding The content encoding to use
+	 */
+	public synchronized void setContentEncoding(ContentEncoding contentEncoding) {
+		if(decodedIn != null) throw new IllegalStateException("Stream has already been read from");
+		this.contentEncoding = contentEncoding;
+	}
+
+	public ContentEncoding getContentEncoding() {
+		return contentEncoding;
+	}
+
+	/**
+	 * Returns the amount of bytes read from the input streams so far. If a {@link #setContentEncoding(ContentEncoding) content encoding} is set, this refers to the encoded data
+	 * @return The current offset
+	 */
+	public synchronized long getOffset() {
+		return offset;
+	}
+
+	private InputStream getDecodedInput() throws IOException {
+		if(decodedIn == null) decodedIn = contentEncoding.decode(new RawInputStream());
+		return decodedIn;
+	}
+
 	@Override
 	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if(contentEncoding == ContentEncoding.IDENTITY) return readRaw(b, off, len);
+		if(closed) throw new IllegalStateException("Stream is closed");
+		return getDecodedInput().read(b, off, len);
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		if(contentEncoding == ContentEncoding.IDENTITY) return readRaw();
+		if(closed) throw new IllegalStateException("Stream is closed");
+		return getDecodedInput().read();
+	}
+
+	private synchronized int readRaw(byte[] b, int off, int len) throws IOException {
 		if(closed) throw new IllegalStateException("Stream is closed");
-		byte[] oldBytes = Arrays.copyOf(b, b.length);
 		try {
 			if(trackTransferSpeed && thisSecond != System.currentTimeMillis() / 1000) {
 				bytesLastSecond = bytesThisSecond;
@@ -128,13 +170,13 @@ public class RetryingInputStream extends InputStream {
 			}
 			return read;
 		}catch(IOException e) {
+			if(closed) throw e;
 			in = providerFunction.newInput(offset, false);
-			return read(oldBytes, off, len);
+			return readRaw(b, off, len);
 		}
 	}
 
-	@Override
-	public synchronized int read() throws IOException {
+	private synchronized int readRaw() throws IOException {
 		if(closed) throw new IllegalStateException("Stream is closed");
 		try {
 			if(trackTransferSpeed &&thisSecond != System.currentTimeMillis() / 1000) {
@@ -151,15 +193,73 @@ public class RetryingInputStream extends InputStream {
 			}
 			return read;
 		}catch(IOException e) {
+			if(closed) throw e;
 			in = providerFunction.newInput(offset, false);
-			return read();
+			return readRaw();
+		}
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		if(closed) return 0;
+		if(contentEncoding != ContentEncoding.IDENTITY) return decodedIn == null ? 0 : decodedIn.available();
+		return availableRaw();
+	}
+
+	private int availableRaw() {
+		try {
+			return in.available();
+		}catch(IOException e) {
+			return 0;
 		}
 	}
 
+	/**
+	 * Wraps this stream in a {@link ReadAheadInputStream}, so that data is read from the network while the consumer is still processing previous data.<br>
+	 * Retries happen transparently on the read-ahead thread. Because the stream is read constantly, this also makes {@link #setRetryIfSlow(boolean)} more reliable.<br>
+	 * Closing the returned stream will also close this stream
+	 * @param pool The pool to take buffers from
+	 * @param maxQueuedBuffers The maximum amount of buffers to read ahead
+	 * @return The read-ahead stream
+	 * @see BufferPool
+	 */
+	public ReadAheadInputStream withReadAhead(BufferPool pool, int maxQueuedBuffers) {
+		return new ReadAheadInputStream(this, pool, maxQueuedBuffers);
+	}
+
+	/**
+	 * Wraps this stream in a {@link ReadAheadInputStream} using the {@link BufferPool#getDefault() default pool}
+	 * @return The read-ahead stream
+	 * @see #withReadAhead(BufferPool, int)
+	 */
+	public ReadAheadInputStream withReadAhead() {
+		return new ReadAheadInputStream(this);
+	}
+
 	@Override
 	public void close() throws IOException {
-		in.close();
 		closed = true;
+		in.close();
+		if(decodedIn != null) decodedIn.close();
+	}
+
+	private class RawInputStream extends InputStream {
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return readRaw(b, off, len);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return readRaw();
+		}
+
+		@Override
+		public int available() throws IOException {
+			return availableRaw();
+		}
+
 	}
 
 }
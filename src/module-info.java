@@ -1,6 +1,8 @@
 module jtordownloader {
 	exports me.mrletsplay.jtordl;
 	exports me.mrletsplay.jtordl.circuit;
+	exports me.mrletsplay.jtordl.download;
+	exports me.mrletsplay.jtordl.fetch;
 	exports me.mrletsplay.jtordl.io;
 
 	requires transitive mrcore;
@@ -0,0 +1,185 @@
+package me.mrletsplay.jtordl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import me.mrletsplay.jtordl.circuit.CircuitState;
+import me.mrletsplay.jtordl.circuit.TorCircuit;
+import me.mrletsplay.jtordl.io.ContentEncoding;
+import me.mrletsplay.jtordl.io.RetryingInputStream;
+import me.mrletsplay.jtordl.testing.FakeTor;
+import me.mrletsplay.jtordl.testing.LocalOriginServer;
+
+public class JTorDownloaderTest {
+
+	private static LocalOriginServer origin;
+	private static TorCircuit circuit;
+	private static URI oldConnectionTestURI;
+
+	@BeforeAll
+	public static void startCircuit(@TempDir Path dir) throws Exception {
+		origin = new LocalOriginServer();
+		origin.addResource("/", new byte[0]);
+
+		FakeTor.install(dir.resolve("fake-tor").toFile());
+		oldConnectionTestURI = TorCircuit.getConnectionTestURI();
+		TorCircuit.setConnectionTestURI(origin.getURL("/").toURI());
+
+		circuit = new TorCircuit(dir.resolve("circuit").toFile(), "127.0.0.1", -1);
+		circuit.start();
+		circuit.awaitState(CircuitState.RUNNING);
+	}
+
+	@AfterAll
+	public static void stopCircuit() {
+		if(circuit != null) circuit.stop();
+		if(origin != null) origin.close();
+		TorCircuit.setConnectionTestURI(oldConnectionTestURI);
+	}
+
+	@Test
+	public void testStableInputStreamRetriesAfterReset() throws IOException {
+		byte[] data = new byte[1_000_000];
+		new Random(1).nextBytes(data);
+		origin.addResource("/reset", data);
+
+		int requests = origin.getRequestCount();
+		origin.getFaultInjector().reset(requests + 1, 300_000).reset(requests + 2, 200_000);
+		try(RetryingInputStream in = JTorDownloader.createStableInputStream(circuit, origin.getURL("/reset"))) {
+			assertArrayEquals(data, in.readAllBytes());
+		}finally {
+			origin.getFaultInjector().clear();
+		}
+
+		assertTrue(origin.getRequestCount() >= requests + 3, "Expected the stream to be reopened twice");
+	}
+
+	@Test
+	public void testStableInputStreamResumesWithoutRangeSupport() throws IOException {
+		byte[] data = new byte[500_000];
+		new Random(2).nextBytes(data);
+		origin.addResource("/no-range", data);
+		origin.setRangeSupported(false);
+
+		int requests = origin.getRequestCount();
+		origin.getFaultInjector().reset(requests + 1, 250_000);
+		try(RetryingInputStream in = JTorDownloader.createStableInputStream(circuit, origin.getURL("/no-range"))) {
+			assertArrayEquals(data, in.readAllBytes());
+		}finally {
+			origin.getFaultInjector().clear();
+			origin.setRangeSupported(true);
+		}
+	}
+
+	@Test
+	public void testStableInputStreamRetriesIfStalled() throws IOException {
+		byte[] data = new byte[300_000];
+		new Random(3).nextBytes(data);
+		origin.addResource("/stall", data);
+
+		int requests = origin.getRequestCount();
+		origin.getFaultInjector().stall(requests + 1, 100_000, 2000).stall(requests + 1, 150_000, 60_000);
+		long start = System.currentTimeMillis();
+		try(RetryingInputStream in = JTorDownloader.createStableInputStream(circuit, origin.getURL("/stall"))) {
+			in.setTrackTransferSpeed(true);
+			in.setRetryIfSlow(true);
+			in.setSlowThreshold(1024, 1000);
+			assertArrayEquals(data, in.readAllBytes());
+		}finally {
+			origin.getFaultInjector().clear();
+		}
+
+		assertTrue(System.currentTimeMillis() - start < 30_000, "Expected the stalled transfer to be retried");
+	}
+
+	@Test
+	public void testCorruptedCompressedTransferFails() throws IOException {
+		byte[] data = new byte[200_000];
+		new Random(4).nextBytes(data);
+		origin.addResource("/corrupt", data);
+		origin.setCompressionEnabled(true);
+		circuit.setAcceptCompression(true);
+
+		origin.getFaultInjector().corrupt(origin.getRequestCount() + 1, 50_000);
+		try(RetryingInputStream in = JTorDownloader.createStableInputStream(circuit, origin.getURL("/corrupt"))) {
+			assertEquals(ContentEncoding.GZIP, in.getContentEncoding());
+			// The corrupted data must not be passed on silently
+			assertThrows(IOException.class, () -> in.readAllBytes());
+		}finally {
+			origin.getFaultInjector().clear();
+			origin.setCompressionEnabled(false);
+			circuit.setAcceptCompression(false);
+		}
+	}
+
+	private static byte[] compressibleData(int length, int seed) {
+		byte[] data = new byte[length];
+		Random r = new Random(seed);
+		for(int i = 0; i < length; i++) data[i] = (byte) ('a' + r.nextInt(16));
+		return data;
+	}
+
+	@Test
+	public void testCompressedStreamResumesAfterReset() throws IOException {
+		byte[] data = compressibleData(500_000, 5);
+		origin.addResource("/gzip-reset", data);
+		origin.setCompressionEnabled(true);
+		circuit.setAcceptCompression(true);
+
+		int requests = origin.getRequestCount();
+		origin.getFaultInjector().reset(requests + 1, 100_000).reset(requests + 2, 50_000);
+		try(RetryingInputStream in = JTorDownloader.createStableInputStream(circuit, origin.getURL("/gzip-reset"))) {
+			assertEquals(ContentEncoding.GZIP, in.getContentEncoding());
+			assertArrayEquals(data, in.readAllBytes());
+			assertTrue(in.getOffset() < data.length, "Offset should refer to the compressed data");
+		}finally {
+			origin.getFaultInjector().clear();
+			origin.setCompressionEnabled(false);
+			circuit.setAcceptCompression(false);
+		}
+
+		assertTrue(origin.getRequestCount() >= requests + 3, "Expected the stream to be reopened twice");
+	}
+
+	@Test
+	public void testCompressedStreamWithoutStrongETagIsNotResumed() throws IOException {
+		byte[] data = compressibleData(500_000, 6);
+		origin.addResource("/gzip-weak", data);
+		origin.setCompressionEnabled(true);
+		origin.setRangeSupported(false);
+		origin.setWeakETags(true);
+		circuit.setAcceptCompression(true);
+
+		int requests = origin.getRequestCount();
+		origin.getFaultInjector().reset(requests + 1, 100_000);
+		long start = System.currentTimeMillis();
+		try(RetryingInputStream in = JTorDownloader.createStableInputStream(circuit, origin.getURL("/gzip-weak"))) {
+			UnresumableTransferException e = assertThrows(UnresumableTransferException.class, () -> in.readAllBytes());
+			assertTrue(e.getMessage().contains("strong ETag"), e.getMessage());
+		}finally {
+			origin.getFaultInjector().clear();
+			origin.setCompressionEnabled(false);
+			origin.setRangeSupported(true);
+			origin.setWeakETags(false);
+			circuit.setAcceptCompression(false);
+		}
+
+		// The refusal must neither be retried nor restart the circuit
+		assertEquals(2, origin.getRequestCount() - requests);
+		assertTrue(System.currentTimeMillis() - start < 5000, "Refusal should fail immediately");
+		assertEquals(CircuitState.RUNNING, circuit.getState());
+	}
+
+}
@@ -0,0 +1,149 @@
+package me.mrletsplay.jtordl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import me.mrletsplay.jtordl.circuit.CircuitState;
+import me.mrletsplay.jtordl.circuit.TorCircuit;
+import me.mrletsplay.jtordl.testing.FakeTor;
+import me.mrletsplay.jtordl.testing.LocalOriginServer;
+
+public class ResourceInfoCacheTest {
+
+	private static final int LENGTH = 100_000;
+
+	private static LocalOriginServer origin;
+	private static TorCircuit circuit;
+	private static URI oldConnectionTestURI;
+
+	@BeforeAll
+	public static void startCircuit(@TempDir Path dir) throws Exception {
+		origin = new LocalOriginServer();
+		origin.addResource("/", new byte[0]);
+		origin.addResource("/resource", new byte[LENGTH]);
+
+		FakeTor.install(dir.resolve("fake-tor").toFile());
+		oldConnectionTestURI = TorCircuit.getConnectionTestURI();
+		TorCircuit.setConnectionTestURI(origin.getURL("/").toURI());
+
+		circuit = new TorCircuit(dir.resolve("circuit").toFile(), "127.0.0.1", -1);
+		circuit.start();
+		circuit.awaitState(CircuitState.RUNNING);
+	}
+
+	@AfterAll
+	public static void stopCircuit() {
+		if(circuit != null) circuit.stop();
+		if(origin != null) origin.close();
+		TorCircuit.setConnectionTestURI(oldConnectionTestURI);
+	}
+
+	@AfterEach
+	public void resetOrigin() {
+		origin.setHeadSupported(true);
+		origin.setRangeSupported(true);
+		origin.setAcceptRangesSent(true);
+		origin.setResponseDelay(0);
+	}
+
+	@Test
+	public void testProbeUsesHead() {
+		int requests = origin.getRequestCount();
+		ResourceInfo info = new ResourceInfoCache().get(circuit, origin.getURL("/resource"));
+		assertEquals(LENGTH, info.getContentLength());
+		assertTrue(info.isRangeSupported());
+		assertNotNull(info.getETag());
+		assertEquals(1, origin.getRequestCount() - requests);
+	}
+
+	@Test
+	public void testFallbackWithoutHead() {
+		origin.setHeadSupported(false);
+		int requests = origin.getRequestCount();
+		ResourceInfo info = new ResourceInfoCache().get(circuit, origin.getURL("/resource"));
+		assertEquals(LENGTH, info.getContentLength());
+		assertTrue(info.isRangeSupported());
+		assertNotNull(info.getETag());
+		assertEquals(2, origin.getRequestCount() - requests);
+	}
+
+	@Test
+	public void testFallbackWithoutAcceptRanges() {
+		origin.setAcceptRangesSent(false);
+		ResourceInfo info = new ResourceInfoCache().get(circuit, origin.getURL("/resource"));
+		assertEquals(LENGTH, info.getContentLength());
+		assertTrue(info.isRangeSupported(), "Range support should be detected using a range request");
+
+		origin.setRangeSupported(false);
+		info = new ResourceInfoCache().get(circuit, origin.getURL("/resource"));
+		assertEquals(LENGTH, info.getContentLength());
+		assertFalse(info.isRangeSupported());
+	}
+
+	@Test
+	public void testEntriesExpire() throws InterruptedException {
+		ResourceInfoCache cache = new ResourceInfoCache(500);
+		URL url = origin.getURL("/resource");
+		int requests = origin.getRequestCount();
+		ResourceInfo info = cache.get(circuit, url);
+		assertSame(info, cache.get(circuit, url));
+		assertEquals(1, origin.getRequestCount() - requests);
+
+		Thread.sleep(600);
+		ResourceInfo newInfo = cache.get(circuit, url);
+		assertTrue(newInfo != info, "Expired entry should be probed again");
+		assertEquals(2, origin.getRequestCount() - requests);
+
+		cache.invalidate(url);
+		cache.get(circuit, url);
+		assertEquals(3, origin.getRequestCount() - requests);
+	}
+
+	@Test
+	public void testConcurrentProbesAreMerged() throws Exception {
+		ResourceInfoCache cache = new ResourceInfoCache(0);
+		URL url = origin.getURL("/resource");
+		origin.setResponseDelay(500);
+
+		int threads = 8;
+		ExecutorService ex = Executors.newFixedThreadPool(threads);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<ResourceInfo>> results = new ArrayList<>();
+			int requests = origin.getRequestCount();
+			for(int i = 0; i < threads; i++) {
+				results.add(ex.submit(() -> {
+					start.await();
+					return cache.get(circuit, url);
+				}));
+			}
+			start.countDown();
+
+			ResourceInfo info = results.get(0).get();
+			for(Future<ResourceInfo> f : results) assertSame(info, f.get());
+			assertEquals(1, origin.getRequestCount() - requests);
+		}finally {
+			ex.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package me.mrletsplay.jtordl.circuit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ExitNodeIndexTest {
+
+	private static final String FAST = "FAST", FASTER = "FASTER", FASTEST = "FASTEST", SLOW = "SLOW";
+
+	@TempDir
+	public Path tempDir;
+
+	private static void record(ExitNodeIndex index, String exit, double bytesPerSecond, int count) {
+		for(int i = 0; i < count; i++) index.record(exit, bytesPerSecond, 100);
+	}
+
+	@Test
+	public void testAverages() {
+		ExitNodeIndex index = new ExitNodeIndex();
+		index.record(FAST, 100_000, 200);
+		index.record(FAST, 300_000, -1);
+		index.record(FAST, -1, 400);
+		assertEquals(200_000, index.getBytesPerSecond(FAST), 1);
+		assertEquals(300, index.getLatencyMillis(FAST), 1);
+		assertEquals(-1, index.getBytesPerSecond(SLOW), 0);
+	}
+
+	@Test
+	public void testPreferredAndExcludedExits() {
+		ExitNodeIndex index = new ExitNodeIndex();
+		index.setPreferredExitCount(2);
+		record(index, FAST, 100 * 1024, 3);
+		record(index, FASTER, 200 * 1024, 3);
+		record(index, FASTEST, 300 * 1024, 3);
+		record(index, SLOW, 10 * 1024, 3);
+		record(index, "UNMEASURED", 10 * 1024, 1);
+
+		assertEquals(Arrays.asList(FASTEST, FASTER), index.getPreferredExits());
+		assertEquals(Collections.singletonList(SLOW), index.getExcludedExits());
+
+		index.setPreferredExitCount(0);
+		assertTrue(index.getPreferredExits().isEmpty());
+
+		index.setSlowThresholdSpeed(0);
+		assertTrue(index.getExcludedExits().isEmpty());
+	}
+
+	@Test
+	public void testMeasurementsDecay() throws InterruptedException {
+		ExitNodeIndex index = new ExitNodeIndex();
+		index.setHalfLife(200);
+		record(index, SLOW, 1024, 3);
+		assertEquals(Collections.singletonList(SLOW), index.getExcludedExits());
+
+		// The weight drops below the minimum weight, so the exit gets another chance
+		Thread.sleep(200);
+		assertTrue(index.getExcludedExits().isEmpty());
+		assertEquals(1024, index.getBytesPerSecond(SLOW), 1);
+
+		// Newer measurements outweigh the decayed ones
+		Thread.sleep(600);
+		index.record(SLOW, 100 * 1024, -1);
+		assertTrue(index.getBytesPerSecond(SLOW) > 80 * 1024, "Old measurements should have less influence");
+	}
+
+	@Test
+	public void testDecayedEntriesArePruned() throws InterruptedException {
+		ExitNodeIndex index = new ExitNodeIndex();
+		index.setHalfLife(20);
+		record(index, SLOW, 1024, 2);
+		Thread.sleep(200);
+		index.getExcludedExits();
+		assertEquals(-1, index.getBytesPerSecond(SLOW), 0);
+		assertEquals(-1, index.getLatencyMillis(SLOW), 0);
+	}
+
+	@Test
+	public void testSaveAndLoad() {
+		File file = tempDir.resolve("index/exits.txt").toFile();
+		ExitNodeIndex index = new ExitNodeIndex(file);
+		record(index, FAST, 100 * 1024, 2);
+		record(index, SLOW, 1024, 3);
+		index.save();
+		assertTrue(file.exists());
+
+		ExitNodeIndex loaded = new ExitNodeIndex(file);
+		assertEquals(index.getBytesPerSecond(FAST), loaded.getBytesPerSecond(FAST), 1);
+		assertEquals(index.getLatencyMillis(FAST), loaded.getLatencyMillis(FAST), 1);
+		assertEquals(index.getBytesPerSecond(SLOW), loaded.getBytesPerSecond(SLOW), 1);
+		assertEquals(Collections.singletonList(SLOW), loaded.getExcludedExits());
+	}
+
+}
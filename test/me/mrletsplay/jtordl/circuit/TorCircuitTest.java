@@ -0,0 +1,147 @@
+package me.mrletsplay.jtordl.circuit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import me.mrletsplay.jtordl.JTorDownloader;
+import me.mrletsplay.jtordl.download.SegmentedDownload;
+import me.mrletsplay.jtordl.testing.FakeTor;
+import me.mrletsplay.jtordl.testing.LocalOriginServer;
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+public class TorCircuitTest {
+
+	private static LocalOriginServer origin;
+	private static TorCircuit circuit;
+	private static URI oldConnectionTestURI;
+
+	@TempDir
+	public Path tempDir;
+
+	@BeforeAll
+	public static void startCircuit(@TempDir Path dir) throws Exception {
+		origin = new LocalOriginServer();
+		origin.addResource("/", new byte[0]);
+		origin.addResource("/resource", new byte[200_000]);
+
+		FakeTor.install(dir.resolve("fake-tor").toFile());
+		oldConnectionTestURI = TorCircuit.getConnectionTestURI();
+		TorCircuit.setConnectionTestURI(origin.getURL("/").toURI());
+
+		circuit = new TorCircuit(dir.resolve("circuit").toFile(), "127.0.0.1", -1);
+		circuit.start();
+		circuit.awaitState(CircuitState.RUNNING);
+	}
+
+	@AfterAll
+	public static void stopCircuit() {
+		if(circuit != null) circuit.stop();
+		if(origin != null) origin.close();
+		TorCircuit.setConnectionTestURI(oldConnectionTestURI);
+	}
+
+	@AfterEach
+	public void resetCircuit() {
+		circuit.setExitNodeIndex(null);
+		circuit.getController().setConf("ExitNodes", Collections.emptyList());
+		circuit.getController().setConf("ExcludeExitNodes", Collections.emptyList());
+		origin.getFaultInjector().clear();
+	}
+
+	private static String awaitExitChange(String oldExit) throws InterruptedException {
+		// The stream is closed by Tor shortly after the response was received
+		long start = System.currentTimeMillis();
+		String exit;
+		while((exit = circuit.getExitFingerprint()).equals(oldExit) && System.currentTimeMillis() - start < 2000) Thread.sleep(10);
+		return exit;
+	}
+
+	@Test
+	public void testOpenStreamKeepsItsExit() throws IOException, InterruptedException {
+		circuit.setExitNodeIndex(new ExitNodeIndex());
+		String exit = circuit.getExitFingerprint();
+		assertNotNull(exit);
+
+		origin.getFaultInjector().throttle(origin.getRequestCount() + 1, 200_000);
+		try(InputStream in = JTorDownloader.createStream(circuit, origin.getURL("/resource"))) {
+			in.readNBytes(10_000);
+			assertEquals(exit, circuit.getTransferExit());
+
+			// Streams stay on their circuit, so the transfer must still be attributed to the old exit
+			circuit.rotate();
+			assertEquals(exit, circuit.getTransferExit());
+			in.readAllBytes();
+		}
+
+		assertFalse(exit.equals(awaitExitChange(exit)), "New streams should use the new exit");
+	}
+
+	@Test
+	public void testSegmentedDownloadRecordsExit() throws InterruptedException {
+		ExitNodeIndex index = new ExitNodeIndex();
+		circuit.setExitNodeIndex(index);
+		String oldExit = circuit.getExitFingerprint();
+		circuit.rotate();
+		String exit = awaitExitChange(oldExit);
+
+		new SegmentedDownload(List.of(circuit), origin.getURL("/resource"), 200_000).downloadTo(tempDir.resolve("resource").toFile());
+		assertTrue(index.getBytesPerSecond(exit) > 0, "Transfer should be recorded for the exit");
+		assertTrue(index.getLatencyMillis(exit) >= 0, "Latency should be recorded for the exit");
+		assertEquals(-1, index.getBytesPerSecond(oldExit), 0);
+	}
+
+	@Test
+	public void testErrorResponseIsNotRecorded() {
+		ExitNodeIndex index = new ExitNodeIndex();
+		circuit.setExitNodeIndex(index);
+		String exit = circuit.getExitFingerprint();
+
+		SegmentedDownload d = new SegmentedDownload(List.of(circuit), origin.getURL("/missing"), 200_000);
+		assertThrows(FriendlyException.class, () -> d.downloadTo(tempDir.resolve("missing").toFile()));
+		assertEquals(-1, index.getBytesPerSecond(exit), 0);
+		assertEquals(-1, index.getLatencyMillis(exit), 0);
+	}
+
+	@Test
+	public void testRotatePrefersFastExits() {
+		String fastExit = String.format("%040X", 0xFA57);
+		ExitNodeIndex index = new ExitNodeIndex();
+		index.setPreferredExitCount(1);
+		for(int i = 0; i < 3; i++) index.record(fastExit, 1024 * 1024, 100);
+		circuit.setExitNodeIndex(index);
+
+		circuit.rotate();
+		assertEquals(fastExit, circuit.getExitFingerprint());
+	}
+
+	@Test
+	public void testRotateExcludesSlowExits() {
+		// FakeTor numbers its exits, so we know which exit it would pick next
+		String exit = circuit.getExitFingerprint();
+		String nextExit = String.format("%040X", Integer.parseInt(exit, 16) + 1);
+		ExitNodeIndex index = new ExitNodeIndex();
+		for(int i = 0; i < 3; i++) index.record(nextExit, 1024, 100);
+		circuit.setExitNodeIndex(index);
+
+		circuit.rotate();
+		String newExit = circuit.getExitFingerprint();
+		assertFalse(newExit.equals(exit) || newExit.equals(nextExit), "Expected a new exit which isn't excluded, got " + newExit);
+	}
+
+}
@@ -0,0 +1,180 @@
+package me.mrletsplay.jtordl.download;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveRangeSchedulerTest {
+
+	private static final long MiB = 1024 * 1024;
+
+	@Test
+	public void testInitialChunkSize() {
+		AdaptiveRangeScheduler s = new AdaptiveRangeScheduler(10 * MiB);
+		ThroughputEstimator source = s.registerSource();
+
+		ByteRange r = s.nextRange(source);
+		assertEquals(0, r.getStart());
+		assertEquals(AdaptiveRangeScheduler.DEFAULT_INITIAL_CHUNK_SIZE, r.getLength());
+		assertEquals(10 * MiB - r.getLength(), s.getRemainingBytes());
+	}
+
+	@Test
+	public void testChunkSizeFollowsBandwidthDelayProduct() {
+		AdaptiveRangeScheduler s = new AdaptiveRangeScheduler(100 * MiB);
+		ThroughputEstimator source = s.registerSource();
+		source.record(MiB, 1000, 100); // 1 MiB/s, 100 ms
+
+		ByteRange r = s.nextRange(source);
+		assertEquals((long) (MiB * 0.1 * AdaptiveRangeScheduler.DEFAULT_RTT_MULTIPLIER), r.getLength());
+
+		s.setRTTMultiplier(2);
+		assertEquals((long) (MiB * 0.1 * 2), s.nextRange(source).getLength());
+	}
+
+	@Test
+	public void testChunkSizeIsClamped() {
+		AdaptiveRangeScheduler s = new AdaptiveRangeScheduler(100 * MiB);
+		s.setChunkSizeBounds(128 * 1024, MiB);
+
+		ThroughputEstimator slow = s.registerSource();
+		slow.record(1024, 1000, 10);
+		assertEquals(128 * 1024, s.nextRange(slow).getLength());
+
+		ThroughputEstimator fast = s.registerSource();
+		fast.record(100 * MiB, 1000, 1000);
+		assertEquals(MiB, s.nextRange(fast).getLength());
+	}
+
+	@Test
+	public void testTailIsSplitByBandwidthShare() {
+		AdaptiveRangeScheduler s = new AdaptiveRangeScheduler(4 * MiB);
+		ThroughputEstimator fast = s.registerSource();
+		ThroughputEstimator slow = s.registerSource();
+		fast.record(3 * MiB, 1000, 1000);
+		slow.record(MiB, 1000, 1000);
+
+		// Both would take the whole resource by their bandwidth-delay product, but only get their share of what's left
+		assertEquals(3 * MiB, s.nextRange(fast).getLength());
+		assertEquals(MiB / 4, s.nextRange(slow).getLength());
+		assertEquals(MiB * 3 / 4, s.getRemainingBytes());
+	}
+
+	@Test
+	public void testFailedRangeIsRequeued() {
+		AdaptiveRangeScheduler s = new AdaptiveRangeScheduler(10 * MiB);
+		ThroughputEstimator source = s.registerSource();
+
+		ByteRange r = s.nextRange(source);
+		s.fail(r, 1000, source);
+
+		ByteRange retry = s.nextRange(source);
+		assertEquals(1000, retry.getStart());
+		assertEquals(r.getEnd(), retry.getEnd());
+	}
+
+	@Test
+	public void testRequeuedRangeIsSplit() {
+		AdaptiveRangeScheduler s = new AdaptiveRangeScheduler(10 * MiB);
+		ThroughputEstimator source = s.registerSource();
+		s.setInitialChunkSize(MiB);
+		ByteRange r = s.nextRange(source);
+		s.fail(r, 0, source);
+
+		s.setInitialChunkSize(256 * 1024);
+		ByteRange first = s.nextRange(source);
+		ByteRange second = s.nextRange(source);
+		assertEquals(0, first.getStart());
+		assertEquals(256 * 1024, first.getLength());
+		assertEquals(256 * 1024, second.getStart());
+		assertEquals(256 * 1024, second.getLength());
+	}
+
+	@Test
+	public void testFasterSourceHedgesSlowRange() {
+		AdaptiveRangeScheduler s = new AdaptiveRangeScheduler(256 * 1024);
+		ThroughputEstimator slow = s.registerSource();
+		ThroughputEstimator fast = s.registerSource();
+		fast.record(MiB, 1000, 100);
+
+		ByteRange r = s.nextRange(slow);
+		assertSame(r, s.nextRange(fast));
+
+		s.complete(r);
+		assertFalse(s.isInProgress(r));
+
+		// The slow source gives up after noticing, which must not requeue the range
+		s.fail(r, 0, slow);
+		assertEquals(0, s.getRemainingBytes());
+		assertNull(s.nextRange(slow));
+	}
+
+	@Test
+	public void testHedgedRangeSurvivesFailureOfOneSource() {
+		AdaptiveRangeScheduler s = new AdaptiveRangeScheduler(256 * 1024);
+		ThroughputEstimator slow = s.registerSource();
+		ThroughputEstimator fast = s.registerSource();
+		fast.record(MiB, 1000, 100);
+
+		ByteRange r = s.nextRange(slow);
+		s.nextRange(fast);
+		s.fail(r, 0, slow);
+		assertTrue(s.isInProgress(r));
+		assertEquals(0, s.getRemainingBytes());
+
+		s.complete(r);
+		assertNull(s.nextRange(fast));
+	}
+
+	@Test
+	public void testIdleSourceWaitsWithoutHedging() throws InterruptedException {
+		AdaptiveRangeScheduler s = new AdaptiveRangeScheduler(256 * 1024);
+		s.setHedging(false);
+		ThroughputEstimator slow = s.registerSource();
+		ThroughputEstimator fast = s.registerSource();
+		fast.record(MiB, 1000, 100);
+
+		ByteRange r = s.nextRange(slow);
+		AtomicReference<ByteRange> result = new AtomicReference<>(r);
+		Thread t = new Thread(() -> result.set(s.nextRange(fast)));
+		t.start();
+		t.join(500);
+		assertTrue(t.isAlive(), "Idle source should wait while a range is in progress");
+
+		// A failed range is given to the waiting source
+		s.fail(r, 100, slow);
+		t.join(5000);
+		assertFalse(t.isAlive());
+		assertEquals(100, result.get().getStart());
+		assertEquals(r.getEnd(), result.get().getEnd());
+	}
+
+	@Test
+	public void testCancelWakesWaitingSources() throws InterruptedException {
+		AdaptiveRangeScheduler s = new AdaptiveRangeScheduler(256 * 1024);
+		s.setHedging(false);
+		ThroughputEstimator a = s.registerSource();
+		ThroughputEstimator b = s.registerSource();
+
+		ByteRange r = s.nextRange(a);
+		AtomicReference<ByteRange> result = new AtomicReference<>(r);
+		Thread t = new Thread(() -> result.set(s.nextRange(b)));
+		t.start();
+		t.join(500);
+		assertTrue(t.isAlive());
+
+		s.cancel();
+		t.join(5000);
+		assertFalse(t.isAlive());
+		assertNull(result.get());
+		assertFalse(s.isInProgress(r));
+		assertTrue(s.isCancelled());
+	}
+
+}
@@ -0,0 +1,132 @@
+package me.mrletsplay.jtordl.download;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import me.mrletsplay.jtordl.circuit.CircuitState;
+import me.mrletsplay.jtordl.circuit.TorCircuit;
+import me.mrletsplay.jtordl.testing.FakeTor;
+import me.mrletsplay.jtordl.testing.LocalOriginServer;
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+public class SegmentedDownloadTest {
+
+	private static LocalOriginServer origin;
+	private static TorCircuit fast, slow;
+	private static URI oldConnectionTestURI;
+
+	@TempDir
+	public Path tempDir;
+
+	@BeforeAll
+	public static void startCircuits(@TempDir Path dir) throws Exception {
+		origin = new LocalOriginServer();
+		origin.addResource("/", new byte[0]);
+
+		FakeTor.install(dir.resolve("fake-tor").toFile());
+		oldConnectionTestURI = TorCircuit.getConnectionTestURI();
+		TorCircuit.setConnectionTestURI(origin.getURL("/").toURI());
+
+		fast = new TorCircuit(dir.resolve("fast").toFile(), "127.0.0.1", -1);
+		slow = new TorCircuit(dir.resolve("slow").toFile(), "127.0.0.1", -1);
+		fast.start();
+		slow.start();
+		fast.awaitState(CircuitState.RUNNING);
+		slow.awaitState(CircuitState.RUNNING);
+	}
+
+	@AfterAll
+	public static void stopCircuits() {
+		if(fast != null) fast.stop();
+		if(slow != null) slow.stop();
+		if(origin != null) origin.close();
+		TorCircuit.setConnectionTestURI(oldConnectionTestURI);
+	}
+
+	private static byte[] addResource(String path, int length) {
+		byte[] data = new byte[length];
+		new Random(path.hashCode()).nextBytes(data);
+		origin.addResource(path, data);
+		return data;
+	}
+
+	@Test
+	public void testDownloadWithResetAndThrottledCircuit() throws IOException {
+		byte[] data = addResource("/segmented", 2 * 1024 * 1024);
+		slow.getController().setConf("BandwidthRate", Collections.singletonList("200 KB"));
+
+		File file = tempDir.resolve("segmented").toFile();
+		SegmentedDownload d = new SegmentedDownload(Arrays.asList(fast, slow), origin.getURL("/segmented"), data.length);
+		d.getScheduler().setChunkSizeBounds(32 * 1024, 256 * 1024);
+		d.getScheduler().setInitialChunkSize(64 * 1024);
+
+		int requests = origin.getRequestCount();
+		origin.getFaultInjector().reset(requests + 3, 1000);
+		try {
+			d.downloadTo(file);
+		}finally {
+			origin.getFaultInjector().clear();
+			if(slow.getState() == CircuitState.RUNNING) slow.getController().setConf("BandwidthRate", Collections.emptyList());
+		}
+
+		assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+	}
+
+	@Test
+	public void testErrorResponseFailsWithoutRestart() {
+		fast.awaitState(CircuitState.RUNNING);
+		slow.awaitState(CircuitState.RUNNING);
+
+		SegmentedDownload d = new SegmentedDownload(Arrays.asList(fast, slow), origin.getURL("/missing"), 1024 * 1024);
+		int requests = origin.getRequestCount();
+		long start = System.currentTimeMillis();
+		FriendlyException e = assertThrows(FriendlyException.class, () -> d.downloadTo(tempDir.resolve("missing").toFile()));
+
+		assertTrue(e.getMessage().contains("404"), e.getMessage());
+		assertTrue(System.currentTimeMillis() - start < 5000, "Error response should fail immediately");
+		assertTrue(origin.getRequestCount() - requests <= 2, "Error response should not be retried");
+		assertEquals(CircuitState.RUNNING, fast.getState());
+		assertEquals(CircuitState.RUNNING, slow.getState());
+	}
+
+	@Test
+	public void testChangedLengthIsDetected() {
+		byte[] data = addResource("/changed", 512 * 1024);
+		addResource("/changed", data.length + 1);
+
+		SegmentedDownload d = new SegmentedDownload(List.of(fast), origin.getURL("/changed"), data.length);
+		FriendlyException e = assertThrows(FriendlyException.class, () -> d.downloadTo(tempDir.resolve("changed").toFile()));
+		assertTrue(e.getMessage().contains("has changed"), e.getMessage());
+	}
+
+	@Test
+	public void testMissingRangeSupportFails() {
+		byte[] data = addResource("/no-range", 512 * 1024);
+		origin.setRangeSupported(false);
+		try {
+			SegmentedDownload d = new SegmentedDownload(List.of(fast), origin.getURL("/no-range"), data.length);
+			FriendlyException e = assertThrows(FriendlyException.class, () -> d.downloadTo(tempDir.resolve("no-range").toFile()));
+			assertTrue(e.getMessage().contains("range requests"), e.getMessage());
+		}finally {
+			origin.setRangeSupported(true);
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+package me.mrletsplay.jtordl.fetch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import me.mrletsplay.jtordl.circuit.CircuitState;
+import me.mrletsplay.jtordl.circuit.TorCircuit;
+import me.mrletsplay.jtordl.testing.FakeTor;
+import me.mrletsplay.jtordl.testing.LocalOriginServer;
+
+public class FetchSessionTest {
+
+	private static LocalOriginServer origin;
+	private static TorCircuit first, second;
+	private static URI oldConnectionTestURI;
+	private static byte[] data;
+
+	@BeforeAll
+	public static void startCircuits(@TempDir Path dir) throws Exception {
+		origin = new LocalOriginServer();
+		origin.addResource("/", new byte[0]);
+		data = new byte[10_000];
+		new Random(1).nextBytes(data);
+		origin.addResource("/resource", data);
+
+		FakeTor.install(dir.resolve("fake-tor").toFile());
+		oldConnectionTestURI = TorCircuit.getConnectionTestURI();
+		TorCircuit.setConnectionTestURI(origin.getURL("/").toURI());
+
+		first = new TorCircuit(dir.resolve("first").toFile(), "127.0.0.1", -1);
+		second = new TorCircuit(dir.resolve("second").toFile(), "127.0.0.1", -1);
+		first.start();
+		second.start();
+	}
+
+	@AfterAll
+	public static void stopCircuits() {
+		if(first != null) first.stop();
+		if(second != null) second.stop();
+		if(origin != null) origin.close();
+		TorCircuit.setConnectionTestURI(oldConnectionTestURI);
+	}
+
+	@BeforeEach
+	public void awaitCircuits() {
+		first.awaitState(CircuitState.RUNNING);
+		second.awaitState(CircuitState.RUNNING);
+	}
+
+	@AfterEach
+	public void resetOrigin() {
+		origin.setResponseDelay(0);
+		origin.getFaultInjector().clear();
+	}
+
+	private static void assertSuccess(FetchResult result) {
+		assertNull(result.getError());
+		assertEquals(200, result.getStatusCode());
+		assertArrayEquals(data, result.getBody());
+	}
+
+	@Test
+	public void testRequestsPerHostAreLimited() {
+		FetchSession session = new FetchSession(Arrays.asList(first, second));
+		session.setMaxRequestsPerHost(2);
+		origin.setResponseDelay(300);
+
+		long start = System.currentTimeMillis();
+		List<FetchResult> results = Collections.synchronizedList(new ArrayList<>());
+		session.fetchAll(Collections.nCopies(6, origin.getURL("/resource")), results::add).join();
+
+		// 6 requests with at most 2 at a time need at least 3 rounds
+		assertTrue(System.currentTimeMillis() - start >= 850, "Too many concurrent requests");
+		assertEquals(6, results.size());
+		for(FetchResult r : results) {
+			assertSuccess(r);
+			assertSame(results.get(0).getCircuit(), r.getCircuit(), "Requests for the same host should use the same circuit");
+		}
+	}
+
+	@Test
+	public void testRequestsWaitForRestartingCircuit() {
+		FetchSession session = new FetchSession(Collections.singletonList(first));
+		first.restart();
+		assertTrue(first.isStarting());
+
+		FetchResult result = session.submit(origin.getURL("/resource")).join();
+		assertSuccess(result);
+		assertEquals(CircuitState.RUNNING, first.getState());
+	}
+
+	@Test
+	public void testHostMovesToOtherCircuitWhenStopped() {
+		FetchSession session = new FetchSession(Arrays.asList(first, second));
+		URL url = origin.getURL("/resource");
+		TorCircuit circuit = session.submit(url).join().getCircuit();
+		TorCircuit other = circuit == first ? second : first;
+
+		circuit.stop();
+		try {
+			FetchResult result = session.submit(url).join();
+			assertSuccess(result);
+			assertSame(other, result.getCircuit());
+		}finally {
+			circuit.start();
+		}
+	}
+
+	@Test
+	public void testFailedRequestIsRetried() {
+		FetchSession session = new FetchSession(Collections.singletonList(first));
+		URL url = origin.getURL("/resource");
+
+		int requests = origin.getRequestCount();
+		origin.getFaultInjector().reset(requests + 1, 1000);
+		assertSuccess(session.submit(url).join());
+		assertEquals(2, origin.getRequestCount() - requests);
+
+		session.setMaxRetries(0);
+		origin.getFaultInjector().reset(origin.getRequestCount() + 1, 1000);
+		FetchResult result = session.submit(url).join();
+		assertNotNull(result.getError());
+		assertFalse(result.isSuccess());
+	}
+
+}
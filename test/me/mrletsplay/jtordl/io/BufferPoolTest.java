@@ -0,0 +1,74 @@
+package me.mrletsplay.jtordl.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testAcquireAndRelease() throws InterruptedException {
+		BufferPool pool = new BufferPool(1024, 2);
+		ByteBuffer a = pool.acquire();
+		ByteBuffer b = pool.tryAcquire();
+		assertEquals(1024, a.capacity());
+		assertNotNull(b);
+		assertEquals(2, pool.getBuffersInUse());
+		assertNull(pool.tryAcquire());
+
+		a.put((byte) 1);
+		pool.release(a);
+		assertEquals(1, pool.getBuffersInUse());
+
+		// Buffers are reused and handed out cleared
+		ByteBuffer c = pool.acquire();
+		assertSame(a, c);
+		assertEquals(0, c.position());
+		assertEquals(c.capacity(), c.remaining());
+	}
+
+	@Test
+	public void testAcquireWaitsForRelease() throws InterruptedException {
+		BufferPool pool = new BufferPool(1024, 1);
+		ByteBuffer held = pool.acquire();
+
+		AtomicReference<ByteBuffer> acquired = new AtomicReference<>();
+		Thread t = new Thread(() -> {
+			try {
+				acquired.set(pool.acquire());
+			}catch(InterruptedException e) {
+				// Test failed
+			}
+		});
+		t.start();
+		t.join(300);
+		assertTrue(t.isAlive(), "acquire() should wait while the pool is exhausted");
+
+		pool.release(held);
+		t.join(5000);
+		assertFalse(t.isAlive());
+		assertSame(held, acquired.get());
+	}
+
+	@Test
+	public void testDirectBuffers() throws InterruptedException {
+		assertTrue(new BufferPool(1024, 1, true).acquire().isDirect());
+		assertFalse(new BufferPool(1024, 1).acquire().isDirect());
+	}
+
+	@Test
+	public void testInvalidArguments() {
+		assertThrows(IllegalArgumentException.class, () -> new BufferPool(0, 1));
+		assertThrows(IllegalArgumentException.class, () -> new BufferPool(1024, 0));
+	}
+
+}
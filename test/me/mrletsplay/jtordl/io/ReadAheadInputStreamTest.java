@@ -0,0 +1,142 @@
+package me.mrletsplay.jtordl.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class ReadAheadInputStreamTest {
+
+	private static byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	private static void awaitBuffersInUse(BufferPool pool, int count) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		while(pool.getBuffersInUse() != count && System.currentTimeMillis() - start < 5000) Thread.sleep(10);
+		assertEquals(count, pool.getBuffersInUse());
+	}
+
+	@Test
+	public void testReadsAllData() throws IOException, InterruptedException {
+		byte[] data = randomData(1_000_000);
+		BufferPool pool = new BufferPool(8192, 8);
+		try(ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), pool, 4)) {
+			assertArrayEquals(data, in.readAllBytes());
+		}
+		awaitBuffersInUse(pool, 0);
+	}
+
+	@Test
+	public void testReadsAllDataWithDirectBuffers() throws IOException, InterruptedException {
+		byte[] data = randomData(1_000_000);
+		BufferPool pool = new BufferPool(8192, 8, true);
+		try(ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), pool, 4)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for(int i = 0; i < 100; i++) out.write(in.read());
+			out.write(in.readAllBytes());
+			assertArrayEquals(data, out.toByteArray());
+		}
+		awaitBuffersInUse(pool, 0);
+	}
+
+	@Test
+	public void testDataBeforeErrorIsNotLost() throws IOException {
+		byte[] data = randomData(10_000);
+		BufferPool pool = new BufferPool(64 * 1024, 4);
+		try(ReadAheadInputStream in = new ReadAheadInputStream(new FailingInputStream(data), pool, 4)) {
+			byte[] read = new byte[data.length];
+			int n = 0, len;
+			while(n < read.length && (len = in.read(read, n, read.length - n)) != -1) n += len;
+			assertArrayEquals(data, read);
+
+			IOException e = assertThrows(IOException.class, () -> in.read());
+			assertEquals("Connection reset", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testCloseReturnsBuffers() throws IOException, InterruptedException {
+		BufferPool pool = new BufferPool(1024, 8);
+		ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(randomData(100_000)), pool, 4);
+		in.read();
+		awaitBuffersInUse(pool, 4);
+		in.close();
+		awaitBuffersInUse(pool, 0);
+	}
+
+	@Test
+	public void testUnreadStreamDoesntBlockOthers() throws IOException, InterruptedException {
+		byte[] data = randomData(300_000);
+		BufferPool pool = new BufferPool(8192, 4);
+		try(ReadAheadInputStream unread = new ReadAheadInputStream(new ByteArrayInputStream(data), pool, 3);
+				ReadAheadInputStream other = new ReadAheadInputStream(new ByteArrayInputStream(data), pool, 3)) {
+			// Let the first stream take as many buffers as it can
+			Thread.sleep(100);
+			assertArrayEquals(data, other.readAllBytes());
+			assertArrayEquals(data, unread.readAllBytes());
+		}
+	}
+
+	@Test
+	public void testExhaustedPoolReadsDirectly() throws IOException, InterruptedException {
+		byte[] data = randomData(100_000);
+		BufferPool pool = new BufferPool(8192, 1);
+		ByteBuffer held = pool.acquire();
+		try(ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), pool, 1)) {
+			assertArrayEquals(data, in.readAllBytes());
+		}finally {
+			pool.release(held);
+		}
+	}
+
+	@Test
+	public void testInvalidQueueSize() {
+		BufferPool pool = new BufferPool(1024, 2);
+		assertThrows(IllegalArgumentException.class, () -> new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]), pool, 0));
+		assertThrows(IllegalArgumentException.class, () -> new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]), pool, 3));
+	}
+
+	/**
+	 * Returns its data while claiming more is available, then fails like a connection which is reset
+	 */
+	private static class FailingInputStream extends InputStream {
+
+		private ByteArrayInputStream in;
+
+		public FailingInputStream(byte[] data) {
+			this.in = new ByteArrayInputStream(data);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if(n == -1) throw new IOException("Connection reset");
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if(b == -1) throw new IOException("Connection reset");
+			return b;
+		}
+
+		@Override
+		public int available() {
+			return 1;
+		}
+
+	}
+
+}
@@ -0,0 +1,88 @@
+package me.mrletsplay.jtordl.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class RetryingInputStreamTest {
+
+	@Test
+	public void testRetryReadsIntoCallerArray() throws IOException {
+		byte[] data = new byte[100_000];
+		new Random(1).nextBytes(data);
+
+		List<Long> offsets = new ArrayList<>();
+		InputProviderFunction provider = (offset, forceNewSource) -> {
+			offsets.add(offset);
+			return new FailingInputStream(Arrays.copyOfRange(data, (int) offset, data.length), 30_000);
+		};
+
+		try(RetryingInputStream in = new RetryingInputStream(provider.newInput(0, false), provider)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int len;
+			while((len = in.read(buf, 0, buf.length)) != -1) out.write(buf, 0, len);
+
+			assertArrayEquals(data, out.toByteArray());
+			assertEquals(data.length, in.getOffset());
+		}
+
+		assertEquals(Arrays.asList(0L, 30_000L, 60_000L, 90_000L), offsets);
+	}
+
+	@Test
+	public void testRetryWithSingleByteReads() throws IOException {
+		byte[] data = new byte[1000];
+		new Random(2).nextBytes(data);
+
+		InputProviderFunction provider = (offset, forceNewSource) -> new FailingInputStream(Arrays.copyOfRange(data, (int) offset, data.length), 300);
+		try(RetryingInputStream in = new RetryingInputStream(provider.newInput(0, false), provider)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int b;
+			while((b = in.read()) != -1) out.write(b);
+			assertArrayEquals(data, out.toByteArray());
+		}
+	}
+
+	/**
+	 * A stream which throws an {@link IOException} after a fixed amount of bytes, like a connection which is reset
+	 */
+	private static class FailingInputStream extends InputStream {
+
+		private InputStream in;
+		private long remaining;
+
+		public FailingInputStream(byte[] data, long failAfter) {
+			this.in = new ByteArrayInputStream(data);
+			this.remaining = failAfter;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(remaining <= 0) throw new IOException("Connection reset");
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if(n > 0) remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(remaining <= 0) throw new IOException("Connection reset");
+			int b = in.read();
+			if(b != -1) remaining--;
+			return b;
+		}
+
+	}
+
+}
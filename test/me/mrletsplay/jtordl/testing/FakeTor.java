@@ -0,0 +1,417 @@
+package me.mrletsplay.jtordl.testing;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import me.mrletsplay.jtordl.circuit.TorCircuit;
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+/**
+ * A stand-in for the <code>tor</code> executable which doesn't connect to the Tor network.<br>
+ * It accepts the arguments used by {@link TorCircuit}, runs a plain HTTP proxy (supporting <code>CONNECT</code> and absolute-form requests) on the <code>HTTPTunnelPort</code> and a minimal control port which reports fake exit relays.<br>
+ * Like Tor, new connections are attached to the newest circuit and keep using it until they are closed. <code>SIGNAL NEWNYM</code> builds a new circuit through the next exit, which is reported along with the open streams in <code>stream-status</code> and <code>circuit-status</code>.<br>
+ * Setting <code>BandwidthRate</code> (e.g. using <code>SETCONF</code> on the control port) limits the speed at which responses are relayed, to simulate a slow circuit.<br>
+ * <br>
+ * Use {@link #install(File)} to make all circuits started afterwards use this instead of Tor. Together with a {@link LocalOriginServer} and {@link TorCircuit#setConnectionTestURI(URI)}, this allows circuits to be tested without internet access.
+ */
+public class FakeTor {
+
+	private static final int RELAY_BUFFER_SIZE = 8 * 1024;
+
+	private static final List<String> HOP_BY_HOP_HEADERS = Arrays.asList("connection", "proxy-connection", "keep-alive", "upgrade", "http2-settings", "te", "trailer", "proxy-authorization");
+
+	private Map<String, String> conf;
+	private byte[] cookie;
+	private int exitCounter;
+	private List<Circuit> circuits;
+	private List<Stream> streams;
+	private int nextCircuitID = 1, nextStreamID = 1;
+
+	private FakeTor(Map<String, String> conf) {
+		this.conf = conf;
+		this.circuits = new ArrayList<>();
+		this.streams = new ArrayList<>();
+	}
+
+	/**
+	 * Creates a launcher script which starts {@link FakeTor} using the current Java installation and class path
+	 * @param directory The directory to create the script in
+	 * @return The script, to be passed to {@link TorCircuit#setTorPath(String)}
+	 * @throws FriendlyException If the script can't be created
+	 */
+	public static File createLauncher(File directory) throws FriendlyException {
+		boolean windows = System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("win");
+		String java = new File(System.getProperty("java.home"), "bin/java").getAbsolutePath();
+		List<String> classPath = new ArrayList<>();
+		for(String p : Arrays.asList(System.getProperty("java.class.path"), System.getProperty("jdk.module.path"))) {
+			if(p != null && !p.isEmpty()) classPath.add(p);
+		}
+
+		String command = "\"" + java + "\" -cp \"" + String.join(File.pathSeparator, classPath) + "\" " + FakeTor.class.getName();
+		try {
+			directory.mkdirs();
+			File launcher = new File(directory, windows ? "fake-tor.bat" : "fake-tor");
+			String script = windows ? "@echo off\r\n" + command + " %*\r\n" : "#!/bin/sh\nexec " + command + " \"$@\"\n";
+			Files.write(launcher.toPath(), script.getBytes(StandardCharsets.UTF_8));
+			launcher.setExecutable(true);
+			return launcher;
+		}catch(IOException e) {
+			throw new FriendlyException("Failed to create launcher", e);
+		}
+	}
+
+	/**
+	 * Creates a launcher using {@link #createLauncher(File)} and sets it as the Tor path for all circuits
+	 * @param directory The directory to create the launcher in
+	 */
+	public static void install(File directory) {
+		TorCircuit.setTorPath(createLauncher(directory).getAbsolutePath());
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> conf = new HashMap<>();
+		for(int i = 0; i < args.length - 1; i++) {
+			if(!args[i].startsWith("-")) continue;
+			conf.put(args[i].replaceFirst("^-+", ""), args[++i]);
+		}
+		new FakeTor(conf).run();
+	}
+
+	private void run() throws IOException {
+		buildCircuit();
+		int httpPort = Integer.parseInt(conf.get("HTTPTunnelPort").split(" ")[0]);
+		ServerSocket proxy = listen(httpPort);
+
+		if(conf.containsKey("ControlPort")) {
+			if("1".equals(conf.get("CookieAuthentication"))) {
+				cookie = new byte[32];
+				new SecureRandom().nextBytes(cookie);
+				Files.write(new File(conf.get("DataDirectory"), "control_auth_cookie").toPath(), cookie);
+			}
+			ServerSocket control = listen(Integer.parseInt(conf.get("ControlPort")));
+			startDaemon(() -> acceptLoop(control, this::handleControl), "Fake-Tor-Control");
+		}
+
+		System.out.println("Bootstrapped 100% (done): Done");
+		acceptLoop(proxy, this::handleProxy);
+	}
+
+	private static ServerSocket listen(int port) throws IOException {
+		ServerSocket s = new ServerSocket();
+		s.setReuseAddress(true);
+		s.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		return s;
+	}
+
+	private static void acceptLoop(ServerSocket server, SocketHandler handler) {
+		while(!server.isClosed()) {
+			try {
+				Socket s = server.accept();
+				startDaemon(() -> {
+					try(s) {
+						handler.handle(s);
+					}catch(IOException e) {
+						// Connection closed
+					}
+				}, "Fake-Tor-Connection");
+			}catch(IOException e) {
+				return;
+			}
+		}
+	}
+
+	private void handleProxy(Socket client) throws IOException {
+		InputStream in = new BufferedInputStream(client.getInputStream());
+		OutputStream out = client.getOutputStream();
+		String requestLine = LocalOriginServer.readLine(in);
+		if(requestLine == null) return;
+		String[] parts = requestLine.split(" ");
+		if(parts.length != 3) return;
+
+		List<String> headerLines = new ArrayList<>();
+		String line;
+		while((line = LocalOriginServer.readLine(in)) != null && !line.isEmpty()) headerLines.add(line);
+
+		boolean connect = parts[0].equals("CONNECT");
+		String host;
+		int port;
+		String path = null;
+		if(connect) {
+			int idx = parts[1].lastIndexOf(':');
+			host = parts[1].substring(0, idx);
+			port = Integer.parseInt(parts[1].substring(idx + 1));
+		}else {
+			URI uri = URI.create(parts[1]);
+			host = uri.getHost();
+			port = uri.getPort() == -1 ? 80 : uri.getPort();
+			path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+			if(uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+		}
+
+		Stream stream = null;
+		try(Socket target = new Socket()) {
+			try {
+				target.connect(new InetSocketAddress(host, port), 10000);
+			}catch(IOException e) {
+				out.write("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				return;
+			}
+			stream = openStream(host + ":" + port);
+
+			OutputStream targetOut = target.getOutputStream();
+			if(connect) {
+				out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				out.flush();
+			}else {
+				// Forward a single request and let the client open a new connection for the next one
+				StringBuilder b = new StringBuilder();
+				b.append(parts[0]).append(" ").append(path).append(" ").append(parts[2]).append("\r\n");
+				for(String h : headerLines) {
+					int idx = h.indexOf(':');
+					if(idx != -1 && HOP_BY_HOP_HEADERS.contains(h.substring(0, idx).trim().toLowerCase(Locale.ROOT))) continue;
+					b.append(h).append("\r\n");
+				}
+				b.append("Connection: close\r\n\r\n");
+				targetOut.write(b.toString().getBytes(StandardCharsets.ISO_8859_1));
+				targetOut.flush();
+			}
+
+			Thread upstream = startDaemon(() -> {
+				try {
+					in.transferTo(targetOut);
+					target.shutdownOutput();
+				}catch(IOException e) {
+					// Connection closed
+				}
+			}, "Fake-Tor-Upstream");
+			try {
+				relay(target.getInputStream(), out);
+			}finally {
+				upstream.interrupt();
+			}
+		}finally {
+			if(stream != null) closeStream(stream);
+		}
+	}
+
+	/**
+	 * Copies the response to the client, limited to <code>BandwidthRate</code> (in bytes/s) if it is set
+	 */
+	private void relay(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = new byte[RELAY_BUFFER_SIZE];
+		long start = System.currentTimeMillis(), total = 0;
+		int len;
+		while((len = in.read(buf)) != -1) {
+			out.write(buf, 0, len);
+			out.flush();
+			total += len;
+
+			long rate = getBandwidthRate();
+			if(rate <= 0) continue;
+			long wait = total * 1000 / rate - (System.currentTimeMillis() - start);
+			if(wait <= 0) continue;
+			try {
+				Thread.sleep(wait);
+			}catch(InterruptedException e) {
+				throw new IOException("Interrupted", e);
+			}
+		}
+	}
+
+	private synchronized long getBandwidthRate() {
+		String rate = conf.get("BandwidthRate");
+		if(rate == null) return -1;
+		String[] parts = rate.trim().split("\\s+");
+		long value = Long.parseLong(parts[0]);
+		if(parts.length == 1) return value;
+		switch(parts[1].toUpperCase(Locale.ROOT)) {
+			case "KB":
+			case "KBYTES":
+				return value * 1024;
+			case "MB":
+			case "MBYTES":
+				return value * 1024 * 1024;
+			default:
+				return value;
+		}
+	}
+
+	private void handleControl(Socket socket) throws IOException {
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = socket.getOutputStream();
+		boolean authenticated = cookie == null;
+		String line;
+		while((line = LocalOriginServer.readLine(in)) != null) {
+			String[] parts = line.split(" ", 2);
+			String command = parts[0].toUpperCase(Locale.ROOT);
+			String arg = parts.length > 1 ? parts[1] : "";
+			String reply;
+
+			if(command.equals("AUTHENTICATE")) {
+				authenticated = cookie == null || arg.equalsIgnoreCase(toHex(cookie));
+				reply = authenticated ? "250 OK" : "515 Authentication failed";
+			}else if(command.equals("QUIT")) {
+				reply = "250 closing connection";
+			}else if(!authenticated) {
+				reply = "514 Authentication required";
+			}else if(command.equals("GETINFO")) {
+				reply = getInfo(arg);
+			}else if(command.equals("SETCONF")) {
+				setConf(arg);
+				reply = "250 OK";
+			}else if(command.equals("SIGNAL")) {
+				if(arg.equalsIgnoreCase("NEWNYM")) nextExit();
+				reply = "250 OK";
+			}else {
+				reply = "510 Unrecognized command \"" + parts[0] + "\"";
+			}
+
+			out.write((reply + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			if(command.equals("QUIT") || reply.startsWith("515")) return;
+		}
+	}
+
+	private synchronized String getInfo(String key) {
+		switch(key) {
+			case "stream-status":
+				if(streams.isEmpty()) return "250-stream-status=\r\n250 OK";
+				StringBuilder streamStatus = new StringBuilder("250+stream-status=\r\n");
+				for(Stream st : streams) streamStatus.append(st.id).append(" SUCCEEDED ").append(st.circuit.id).append(" ").append(st.target).append("\r\n");
+				return streamStatus.append(".\r\n250 OK").toString();
+			case "circuit-status":
+				StringBuilder circuitStatus = new StringBuilder("250+circuit-status=\r\n");
+				for(Circuit c : circuits) {
+					circuitStatus.append(c.id).append(" BUILT $").append(fingerprint(1000)).append("~FakeGuard,$").append(fingerprint(2000)).append("~FakeMiddle,$").append(c.exit).append("~FakeExit BUILD_FLAGS=NEED_CAPACITY PURPOSE=GENERAL\r\n");
+				}
+				return circuitStatus.append(".\r\n250 OK").toString();
+			default:
+				return "552 Unrecognized key \"" + key + "\"";
+		}
+	}
+
+	private synchronized void setConf(String arg) {
+		String[] kv = arg.split("=", 2);
+		if(kv.length == 1) conf.remove(kv[0]);
+		else conf.put(kv[0], kv[1].replace("\"", ""));
+	}
+
+	private synchronized void nextExit() {
+		exitCounter++;
+		buildCircuit();
+	}
+
+	/**
+	 * Builds a circuit through the current exit, which will be used for all new streams.<br>
+	 * Circuits which aren't the newest one are closed once their last stream is closed
+	 */
+	private synchronized void buildCircuit() {
+		circuits.add(new Circuit(nextCircuitID++, getExit()));
+		closeUnusedCircuits();
+	}
+
+	private synchronized Stream openStream(String target) {
+		Stream stream = new Stream(nextStreamID++, circuits.get(circuits.size() - 1), target);
+		streams.add(stream);
+		return stream;
+	}
+
+	private synchronized void closeStream(Stream stream) {
+		streams.remove(stream);
+		closeUnusedCircuits();
+	}
+
+	private void closeUnusedCircuits() {
+		Circuit newest = circuits.get(circuits.size() - 1);
+		circuits.removeIf(c -> c != newest && streams.stream().noneMatch(st -> st.circuit == c));
+	}
+
+	/**
+	 * Fake exits are numbered. If <code>ExitNodes</code> is set, the exit is chosen from it, otherwise the current exit number is used. Excluded exits are skipped
+	 */
+	private String getExit() {
+		List<String> excluded = nodeList("ExcludeExitNodes");
+		List<String> preferred = nodeList("ExitNodes");
+		if(!preferred.isEmpty()) return preferred.get(exitCounter % preferred.size());
+
+		int n = exitCounter;
+		while(excluded.contains(fingerprint(n))) n++;
+		return fingerprint(n);
+	}
+
+	private List<String> nodeList(String key) {
+		List<String> nodes = new ArrayList<>();
+		String value = conf.get(key);
+		if(value == null || value.isEmpty()) return nodes;
+		for(String n : value.split(",")) nodes.add(n.trim().replaceFirst("^\\$", ""));
+		return nodes;
+	}
+
+	private static String fingerprint(int n) {
+		return String.format("%040X", n);
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder b = new StringBuilder();
+		for(byte by : bytes) b.append(String.format("%02X", by));
+		return b.toString();
+	}
+
+	private static Thread startDaemon(Runnable r, String name) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	private static class Circuit {
+
+		private final int id;
+		private final String exit;
+
+		public Circuit(int id, String exit) {
+			this.id = id;
+			this.exit = exit;
+		}
+
+	}
+
+	private static class Stream {
+
+		private final int id;
+		private final Circuit circuit;
+		private final String target;
+
+		public Stream(int id, Circuit circuit, String target) {
+			this.id = id;
+			this.circuit = circuit;
+			this.target = target;
+		}
+
+	}
+
+	@FunctionalInterface
+	private static interface SocketHandler {
+
+		public void handle(Socket socket) throws IOException;
+
+	}
+
+}
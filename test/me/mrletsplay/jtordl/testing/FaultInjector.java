@@ -0,0 +1,207 @@
+package me.mrletsplay.jtordl.testing;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Injects faults into response bodies sent by a {@link LocalOriginServer}.<br>
+ * Faults are scheduled by request number (counting all requests the server handled, starting at 1) and by offset into the response body, so that the same sequence of requests always sees the same faults.
+ */
+public class FaultInjector {
+
+	/**
+	 * Used as the request number for faults which should apply to every request
+	 */
+	public static final int ANY_REQUEST = -1;
+
+	private static final int THROTTLE_CHUNK_SIZE = 1024;
+
+	private List<Fault> faults;
+
+	public FaultInjector() {
+		this.faults = new CopyOnWriteArrayList<>();
+	}
+
+	/**
+	 * Limits the speed at which the response body is sent
+	 * @param requestNumber The request to apply the fault to, or {@link #ANY_REQUEST}
+	 * @param bytesPerSecond The maximum speed
+	 * @return This fault injector
+	 */
+	public FaultInjector throttle(int requestNumber, long bytesPerSecond) {
+		if(bytesPerSecond <= 0) throw new IllegalArgumentException("Speed must be positive");
+		faults.add(new Fault(FaultType.THROTTLE, requestNumber, 0, bytesPerSecond));
+		return this;
+	}
+
+	/**
+	 * Stops sending for some time once the given offset of the response body is reached
+	 * @param requestNumber The request to apply the fault to, or {@link #ANY_REQUEST}
+	 * @param offset The offset into the response body
+	 * @param millis The time to stall for
+	 * @return This fault injector
+	 */
+	public FaultInjector stall(int requestNumber, long offset, long millis) {
+		faults.add(new Fault(FaultType.STALL, requestNumber, offset, millis));
+		return this;
+	}
+
+	/**
+	 * Resets the connection (TCP RST) once the given offset of the response body is reached
+	 * @param requestNumber The request to apply the fault to, or {@link #ANY_REQUEST}
+	 * @param offset The offset into the response body
+	 * @return This fault injector
+	 */
+	public FaultInjector reset(int requestNumber, long offset) {
+		faults.add(new Fault(FaultType.RESET, requestNumber, offset, 0));
+		return this;
+	}
+
+	/**
+	 * Flips all bits of the byte at the given offset of the response body
+	 * @param requestNumber The request to apply the fault to, or {@link #ANY_REQUEST}
+	 * @param offset The offset into the response body
+	 * @return This fault injector
+	 */
+	public FaultInjector corrupt(int requestNumber, long offset) {
+		faults.add(new Fault(FaultType.CORRUPT, requestNumber, offset, 0));
+		return this;
+	}
+
+	public void clear() {
+		faults.clear();
+	}
+
+	/**
+	 * Wraps the output stream of a response body, applying all faults scheduled for the request
+	 * @param socket The socket the response is sent over
+	 * @param out The stream to write the response body to
+	 * @param requestNumber The number of the request
+	 * @return The wrapped stream, or <code>out</code> if there are no faults for the request
+	 */
+	public OutputStream wrap(Socket socket, OutputStream out, int requestNumber) {
+		List<Fault> requestFaults = new ArrayList<>();
+		for(Fault f : faults) {
+			if(f.requestNumber == ANY_REQUEST || f.requestNumber == requestNumber) requestFaults.add(f);
+		}
+		if(requestFaults.isEmpty()) return out;
+		return new FaultyOutputStream(socket, out, requestFaults);
+	}
+
+	public static enum FaultType {
+
+		THROTTLE,
+		STALL,
+		RESET,
+		CORRUPT,
+		;
+
+	}
+
+	private static class Fault {
+
+		private final FaultType type;
+		private final int requestNumber;
+		private final long offset, value;
+
+		public Fault(FaultType type, int requestNumber, long offset, long value) {
+			this.type = type;
+			this.requestNumber = requestNumber;
+			this.offset = offset;
+			this.value = value;
+		}
+
+	}
+
+	private static class FaultyOutputStream extends FilterOutputStream {
+
+		private Socket socket;
+		private List<Fault> faults;
+		private long throttle = -1;
+		private long offset, startTime;
+
+		public FaultyOutputStream(Socket socket, OutputStream out, List<Fault> faults) {
+			super(out);
+			this.socket = socket;
+			this.faults = new ArrayList<>(faults);
+			for(Fault f : faults) {
+				if(f.type == FaultType.THROTTLE) throttle = throttle == -1 ? f.value : Math.min(throttle, f.value);
+			}
+			this.faults.removeIf(f -> f.type == FaultType.THROTTLE);
+			this.startTime = System.currentTimeMillis();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				applyFaults();
+				int n = (int) Math.min(len, nextFaultOffset() - offset);
+				if(throttle != -1) n = Math.min(n, THROTTLE_CHUNK_SIZE);
+
+				byte[] chunk = new byte[n];
+				System.arraycopy(b, off, chunk, 0, n);
+				for(Fault f : faults) {
+					if(f.type == FaultType.CORRUPT && f.offset >= offset && f.offset < offset + n) chunk[(int) (f.offset - offset)] ^= 0xFF;
+				}
+				out.write(chunk);
+
+				offset += n;
+				off += n;
+				len -= n;
+				if(throttle != -1) {
+					out.flush();
+					long wait = offset * 1000 / throttle - (System.currentTimeMillis() - startTime);
+					if(wait > 0) sleep(wait);
+				}
+			}
+		}
+
+		private void applyFaults() throws IOException {
+			for(Fault f : faults) {
+				if(f.offset != offset) continue;
+				switch(f.type) {
+					case STALL:
+						out.flush();
+						sleep(f.value);
+						startTime += f.value; // Don't catch up after the stall
+						break;
+					case RESET:
+						out.flush();
+						socket.setSoLinger(true, 0);
+						socket.close();
+						throw new IOException("Injected connection reset at offset " + offset);
+					default:
+						break;
+				}
+			}
+		}
+
+		private long nextFaultOffset() {
+			long next = Long.MAX_VALUE;
+			for(Fault f : faults) {
+				if((f.type == FaultType.STALL || f.type == FaultType.RESET) && f.offset > offset) next = Math.min(next, f.offset);
+			}
+			return next;
+		}
+
+		private static void sleep(long millis) throws IOException {
+			try {
+				Thread.sleep(millis);
+			}catch(InterruptedException e) {
+				throw new IOException("Interrupted", e);
+			}
+		}
+
+	}
+
+}
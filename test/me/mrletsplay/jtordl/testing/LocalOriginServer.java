@@ -0,0 +1,295 @@
+package me.mrletsplay.jtordl.testing;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import me.mrletsplay.mrcore.misc.FriendlyException;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface, serving static resources from memory.<br>
+ * Supports <code>HEAD</code>, range requests and keep-alive connections. Response bodies can be disturbed using a {@link FaultInjector}.
+ */
+public class LocalOriginServer implements AutoCloseable {
+
+	private ServerSocket serverSocket;
+	private Map<String, byte[]> resources;
+	private FaultInjector faultInjector;
+	private AtomicInteger requestCount;
+	private volatile boolean headSupported = true, rangeSupported = true, acceptRangesSent = true, compressionEnabled, weakETags;
+	private volatile long responseDelay;
+
+	/**
+	 * Starts a server on a free port of <code>127.0.0.1</code>
+	 * @throws FriendlyException If the server can't be started
+	 */
+	public LocalOriginServer() throws FriendlyException {
+		try {
+			this.serverSocket = new ServerSocket();
+			serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		}catch(IOException e) {
+			throw new FriendlyException("Failed to start origin server", e);
+		}
+		this.resources = new ConcurrentHashMap<>();
+		this.faultInjector = new FaultInjector();
+		this.requestCount = new AtomicInteger();
+
+		Thread t = new Thread(this::acceptLoop, "Local-Origin-Server_" + getPort());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void addResource(String path, byte[] data) {
+		resources.put(path, data);
+	}
+
+	public void removeResource(String path) {
+		resources.remove(path);
+	}
+
+	/**
+	 * Sets whether <code>HEAD</code> requests are answered. If not, they are rejected with <code>405 Method Not Allowed</code>
+	 * @param headSupported Whether to support <code>HEAD</code>
+	 */
+	public void setHeadSupported(boolean headSupported) {
+		this.headSupported = headSupported;
+	}
+
+	/**
+	 * Sets whether range requests are supported. If not, the <code>Range</code> header is ignored
+	 * @param rangeSupported Whether to support range requests
+	 */
+	public void setRangeSupported(boolean rangeSupported) {
+		this.rangeSupported = rangeSupported;
+	}
+
+	/**
+	 * Sets whether the <code>Accept-Ranges</code> header is sent. Range requests are still answered if this is disabled
+	 * @param acceptRangesSent Whether to advertise range support
+	 */
+	public void setAcceptRangesSent(boolean acceptRangesSent) {
+		this.acceptRangesSent = acceptRangesSent;
+	}
+
+	/**
+	 * Sets whether weak ETags (<code>W/"..."</code>) are sent, like servers which compress responses on the fly do. Weak ETags never match <code>If-Range</code>
+	 * @param weakETags Whether to send weak ETags
+	 */
+	public void setWeakETags(boolean weakETags) {
+		this.weakETags = weakETags;
+	}
+
+	/**
+	 * Sets a delay before each response is sent
+	 * @param responseDelay The delay in milliseconds
+	 */
+	public void setResponseDelay(long responseDelay) {
+		this.responseDelay = responseDelay;
+	}
+
+	/**
+	 * Sets whether resources are sent gzip-compressed to clients which accept it. Ranges then refer to the compressed data
+	 * @param compressionEnabled Whether to enable compression
+	 */
+	public void setCompressionEnabled(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+	}
+
+	public FaultInjector getFaultInjector() {
+		return faultInjector;
+	}
+
+	/**
+	 * @return The amount of requests handled so far. This is also the request number of the most recent request, as used by the {@link FaultInjector}
+	 */
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @param path The path of the resource, starting with a <code>/</code>
+	 * @return The URL of the resource
+	 */
+	public URL getURL(String path) {
+		try {
+			return new URL("http://127.0.0.1:" + getPort() + path);
+		}catch(IOException e) {
+			throw new FriendlyException(e);
+		}
+	}
+
+	private void acceptLoop() {
+		while(!serverSocket.isClosed()) {
+			try {
+				Socket s = serverSocket.accept();
+				Thread t = new Thread(() -> handle(s), "Local-Origin-Connection_" + s.getPort());
+				t.setDaemon(true);
+				t.start();
+			}catch(IOException e) {
+				// Server was closed
+			}
+		}
+	}
+
+	private static void skipBody(InputStream in, long length) throws IOException {
+		while(length > 0) {
+			long n = in.skip(length);
+			if(n <= 0) {
+				if(in.read() == -1) throw new EOFException("Request body ended early");
+				n = 1;
+			}
+			length -= n;
+		}
+	}
+
+	private void handle(Socket socket) {
+		try(Socket s = socket) {
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = s.getOutputStream();
+			while(true) {
+				String requestLine = readLine(in);
+				if(requestLine == null || requestLine.isEmpty()) return;
+
+				Map<String, String> headers = readHeaders(in);
+				if(headers.containsKey("content-length")) skipBody(in, Long.parseLong(headers.get("content-length")));
+
+				int requestNumber = requestCount.incrementAndGet();
+				String[] parts = requestLine.split(" ");
+				respond(s, out, parts[0], parts.length > 1 ? parts[1] : "/", headers, requestNumber);
+				if("close".equalsIgnoreCase(headers.get("connection"))) return;
+			}
+		}catch(IOException | RuntimeException e) {
+			// Connection closed or reset
+		}
+	}
+
+	private void respond(Socket socket, OutputStream out, String method, String path, Map<String, String> headers, int requestNumber) throws IOException {
+		if(responseDelay > 0) {
+			try {
+				Thread.sleep(responseDelay);
+			}catch(InterruptedException e) {
+				throw new IOException("Interrupted", e);
+			}
+		}
+
+		byte[] data = resources.get(path);
+		if(data == null) {
+			writeHead(out, 404, "Not Found", 0, null);
+			return;
+		}
+
+		boolean head = method.equals("HEAD");
+		if(head && !headSupported) {
+			writeHead(out, 405, "Method Not Allowed", 0, null);
+			return;
+		}
+
+		if(!head && !method.equals("GET")) {
+			writeHead(out, 501, "Not Implemented", 0, null);
+			return;
+		}
+
+		Map<String, String> extra = new HashMap<>();
+		String eTag = Integer.toHexString(Arrays.hashCode(data));
+		if(compressionEnabled && headers.getOrDefault("accept-encoding", "").contains("gzip")) {
+			data = gzip(data);
+			eTag += "-gzip";
+			extra.put("Content-Encoding", "gzip");
+		}
+		extra.put("ETag", (weakETags ? "W/" : "") + "\"" + eTag + "\"");
+		if(rangeSupported && acceptRangesSent) extra.put("Accept-Ranges", "bytes");
+
+		long start = 0, end = data.length - 1;
+		int status = 200;
+		String range = headers.get("range");
+		String ifRange = headers.get("if-range");
+		if(rangeSupported && range != null && range.startsWith("bytes=") && (ifRange == null || (!weakETags && ifRange.equals(extra.get("ETag"))))) {
+			String[] r = range.substring("bytes=".length()).split("-", -1);
+			start = Long.parseLong(r[0]);
+			if(!r[1].isEmpty()) end = Math.min(Long.parseLong(r[1]), data.length - 1);
+			if(start >= data.length || end < start) {
+				extra.put("Content-Range", "bytes */" + data.length);
+				writeHead(out, 416, "Range Not Satisfiable", 0, extra);
+				return;
+			}
+			status = 206;
+			extra.put("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+		}
+
+		long length = end - start + 1;
+		writeHead(out, status, status == 206 ? "Partial Content" : "OK", length, extra);
+		if(head) return;
+
+		OutputStream body = faultInjector.wrap(socket, out, requestNumber);
+		body.write(data, (int) start, (int) length);
+		body.flush();
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		try(GZIPOutputStream gOut = new GZIPOutputStream(bOut)) {
+			gOut.write(data);
+		}
+		return bOut.toByteArray();
+	}
+
+	private static void writeHead(OutputStream out, int status, String reason, long contentLength, Map<String, String> headers) throws IOException {
+		StringBuilder b = new StringBuilder();
+		b.append("HTTP/1.1 ").append(status).append(" ").append(reason).append("\r\n");
+		b.append("Content-Length: ").append(contentLength).append("\r\n");
+		if(headers != null) headers.forEach((k, v) -> b.append(k).append(": ").append(v).append("\r\n"));
+		b.append("\r\n");
+		out.write(b.toString().getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+	}
+
+	static Map<String, String> readHeaders(InputStream in) throws IOException {
+		Map<String, String> headers = new HashMap<>();
+		String line;
+		while((line = readLine(in)) != null && !line.isEmpty()) {
+			int idx = line.indexOf(':');
+			if(idx == -1) continue;
+			headers.put(line.substring(0, idx).trim().toLowerCase(Locale.ROOT), line.substring(idx + 1).trim());
+		}
+		return headers;
+	}
+
+	static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		int c;
+		while((c = in.read()) != -1) {
+			if(c == '\n') break;
+			if(c != '\r') b.write(c);
+		}
+		if(c == -1 && b.size() == 0) return null;
+		return new String(b.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	@Override
+	public void close() {
+		try {
+			serverSocket.close();
+		}catch(IOException ignored) {}
+	}
+
+}